@@ -0,0 +1,67 @@
+package ru.ifmo.degtiarenko.splat.benchmark;
+
+import ru.ifmo.degtiarenko.splat.client.BadArgumentException;
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+/**
+ * Configuration of benchmarks: an in-memory H2 database in PostgreSQL mode instead of a live server,
+ * no warm-up, journal or snapshots.
+ */
+final class BenchmarkConfig {
+    private BenchmarkConfig() {
+    }
+
+    /**
+     * @param name          name of the in-memory database, unique per benchmark
+     * @param cacheCapacity capacity of the service cache
+     * @return configuration with a free RMI port
+     */
+    static Config create(String name, int cacheCapacity) throws IOException, BadArgumentException {
+        return create(name, cacheCapacity, "heap");
+    }
+
+    /**
+     * @param name          name of the in-memory database, unique per benchmark
+     * @param cacheCapacity capacity of the service cache
+     * @param cacheStorage  storage of the service cache, as in cache.storage
+     * @return configuration with a free RMI port
+     */
+    static Config create(String name, int cacheCapacity, String cacheStorage)
+            throws IOException, BadArgumentException {
+        Properties properties = properties(name, cacheCapacity);
+        properties.setProperty("cache.storage", cacheStorage);
+        return new Config(properties);
+    }
+
+    /**
+     * @param name          name of the in-memory database, unique per benchmark
+     * @param cacheCapacity capacity of the service cache
+     * @return properties of the configuration with a free RMI port, to be changed by the benchmark
+     */
+    static Properties properties(String name, int cacheCapacity) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("service.port", Integer.toString(freePort()));
+        properties.setProperty("service.host_ip", "localhost");
+        properties.setProperty("service.binding_name", "benchmark/AccountService");
+        properties.setProperty("jdbc.url", "jdbc:h2:mem:" + name + System.nanoTime()
+                + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        properties.setProperty("jdbc.user", "sa");
+        properties.setProperty("jdbc.pass", "");
+        properties.setProperty("jdbc.pool_size", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        properties.setProperty("client.rcount", "0");
+        properties.setProperty("client.wcount", "0");
+        properties.setProperty("client.range", "1");
+        properties.setProperty("cache.capacity", Integer.toString(cacheCapacity));
+        return properties;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package ru.ifmo.degtiarenko.splat.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link ServiceBenchmark} with 1, 4 and 16 threads and the other benchmarks with one thread.
+ * Single benchmarks with other options are run with <code>java -jar target/benchmarks.jar</code>.
+ */
+public class BenchmarkRunner {
+    private static final int[] THREAD_COUNTS = {1, 4, 16};
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREAD_COUNTS) {
+            new Runner(new OptionsBuilder()
+                    .include(ServiceBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+        new Runner(new OptionsBuilder()
+                .include(FlushBenchmark.class.getSimpleName())
+                .include(IdentifiersBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
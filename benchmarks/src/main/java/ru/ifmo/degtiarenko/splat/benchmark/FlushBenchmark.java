@@ -0,0 +1,80 @@
+package ru.ifmo.degtiarenko.splat.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ifmo.degtiarenko.splat.config.Config;
+import ru.ifmo.degtiarenko.splat.server.AccountBatch;
+import ru.ifmo.degtiarenko.splat.server.DBConnection;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of writing one batch of dirty balances with <code>DBConnection.updateData</code>
+ * to the in-memory database, in each flush mode and with one or several parallel ranges of identifiers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int batchSize;
+
+    @Param({"batch", "upsert"})
+    public String flushMode;
+
+    @Param({"1", "4"})
+    public int flushThreads;
+
+    private DBConnection dbConnection;
+    private AccountBatch batch;
+    private long round;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Properties properties = BenchmarkConfig.properties("flush", batchSize);
+        properties.setProperty("jdbc.flush_mode", flushMode);
+        properties.setProperty("jdbc.flush_threads", Integer.toString(flushThreads));
+        properties.setProperty("jdbc.flush_chunk", "1000");
+        int poolSize = Integer.parseInt(properties.getProperty("jdbc.pool_size"));
+        properties.setProperty("jdbc.pool_size", Integer.toString(Math.max(poolSize, flushThreads)));
+        dbConnection = DBConnection.createConnection(new Config(properties));
+        int[] ids = new int[batchSize];
+        for (int i = 0; i < batchSize; i++)
+            ids[i] = i;
+        dbConnection.getAmounts(ids);
+        batch = new AccountBatch(batchSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void fillBatch() {
+        batch.clear();
+        round++;
+        for (int i = 0; i < batchSize; i++)
+            batch.add(i, round);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dbConnection.close();
+    }
+
+    @Benchmark
+    public void updateData() throws Exception {
+        dbConnection.updateData(batch);
+    }
+}
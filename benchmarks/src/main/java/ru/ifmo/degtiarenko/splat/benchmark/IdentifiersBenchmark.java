@@ -0,0 +1,52 @@
+package ru.ifmo.degtiarenko.splat.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ifmo.degtiarenko.splat.client.Identifiers;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of <code>Identifiers.getRandomIdentifier</code> depending on the amount of ranges in client.range
+ * and on client.distribution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifiersBenchmark {
+    @Param({"1", "10", "1000"})
+    public int rangeCount;
+
+    @Param({"uniform", "zipfian:0.99", "hotspot:0.9:0.1"})
+    public String distribution;
+
+    private Identifiers identifiers;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < rangeCount; i++) {
+            if (i > 0)
+                ranges.append(',');
+            ranges.append(i * 2000).append('-').append(i * 2000 + 999);
+        }
+        identifiers = new Identifiers(ranges.toString(), distribution);
+    }
+
+    @Benchmark
+    public int getRandomIdentifier() {
+        return identifiers.getRandomIdentifier();
+    }
+}
@@ -0,0 +1,79 @@
+package ru.ifmo.degtiarenko.splat.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ifmo.degtiarenko.splat.server.Service;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process throughput of <code>Service.getAmount</code> and <code>Service.addAmount</code>, without RMI.
+ * <p>
+ * Identifiers are uniform over <code>capacity / hitRatio</code> accounts, so about <code>hitRatio</code>
+ * of calls hit the cache and the rest load from the in-memory database. The cache keeps entries
+ * in the heap or in direct buffers, as in cache.storage. Thread count is set
+ * with <code>-t</code>, or by {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceBenchmark {
+    private static final int CAPACITY = 100_000;
+    private static final int PRELOAD_CHUNK = 10_000;
+
+    @Param({"1.0", "0.9", "0.5"})
+    public double hitRatio;
+
+    @Param({"heap", "direct"})
+    public String storage;
+
+    private Service service;
+    private int idCount;
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        service = new Service(BenchmarkConfig.create("service", CAPACITY, storage));
+        idCount = (int) (CAPACITY / hitRatio);
+        for (int from = 0; from < idCount; from += PRELOAD_CHUNK) {
+            int[] ids = new int[Math.min(PRELOAD_CHUNK, idCount - from)];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = from + i;
+            service.getAmounts(ids);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public Long getAmount(ThreadRandom random) throws Exception {
+        return service.getAmount(random.random.nextInt(idCount));
+    }
+
+    @Benchmark
+    public void addAmount(ThreadRandom random) throws Exception {
+        service.addAmount(random.random.nextInt(idCount), 1L);
+    }
+}
@@ -0,0 +1,18 @@
+-- Schema of the accounts database.
+--
+-- The service creates the accounts table itself if it is absent. The touched column, its index and the
+-- accounts_touched_seq sequence are needed only by cache.warmup=recent and cache.snapshot_file; the service
+-- creates the sequence and the index when one of them is enabled, but never adds the column to an existing
+-- table. Run the migration below once before enabling them on a database created without the column.
+
+CREATE TABLE IF NOT EXISTS accounts (
+    id      INTEGER PRIMARY KEY,
+    account BIGINT,
+    touched BIGINT DEFAULT 0
+);
+CREATE SEQUENCE IF NOT EXISTS accounts_touched_seq;
+CREATE INDEX IF NOT EXISTS accounts_touched_idx ON accounts (touched);
+
+-- Migration of an existing table (PostgreSQL).
+ALTER TABLE accounts ADD COLUMN IF NOT EXISTS touched BIGINT DEFAULT 0;
+SELECT setval('accounts_touched_seq', GREATEST((SELECT max(touched) FROM accounts), 1));
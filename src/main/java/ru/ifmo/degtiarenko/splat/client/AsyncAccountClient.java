@@ -0,0 +1,209 @@
+package ru.ifmo.degtiarenko.splat.client;
+
+import ru.ifmo.degtiarenko.splat.server.BinaryProtocol;
+import ru.ifmo.degtiarenko.splat.server.WrongShardException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous client of the binary <code>AccountService</code> protocol.
+ * <p>
+ * Requests are pipelined over one connection: every call queues a frame and returns a future which is
+ * completed by the reader thread when the matching response arrives. A single writer thread drains the
+ * queue and sends all frames queued meanwhile with one write, so callers never wait for the socket.
+ * <p>
+ * Once the connection fails or the client is closed, all pending and further requests fail.
+ */
+public class AsyncAccountClient implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final BlockingQueue<Request> requests;
+    private final ConcurrentMap<Integer, CompletableFuture<Long>> pending;
+    private final AtomicInteger nextRequestId;
+    private final Thread reader;
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Frame waiting to be sent.
+     */
+    private static final class Request {
+        private final int requestId;
+        private final byte operation;
+        private final int id;
+        private final long value;
+
+        Request(int requestId, byte operation, int id, long value) {
+            this.requestId = requestId;
+            this.operation = operation;
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Connects to the binary protocol endpoint.
+     *
+     * @param host host of the service
+     * @param port binary protocol port of the service
+     * @throws IOException if failed to connect
+     */
+    public AsyncAccountClient(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        requests = new LinkedBlockingQueue<>();
+        pending = new ConcurrentHashMap<>();
+        nextRequestId = new AtomicInteger();
+        reader = new Thread(this::readResponses, "async-account-client");
+        reader.setDaemon(true);
+        reader.start();
+        writer = new Thread(this::writeRequests, "async-account-client-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Retrieves current balance.
+     *
+     * @param id balance identifier
+     * @return future of the balance
+     */
+    public CompletableFuture<Long> getAmount(int id) {
+        return send(BinaryProtocol.GET_AMOUNT, id, 0);
+    }
+
+    /**
+     * Increases balance.
+     *
+     * @param id    balance identifier
+     * @param value positive or negative value, which must be added to current balance
+     * @return future completed when the balance is changed
+     */
+    public CompletableFuture<Void> addAmount(int id, long value) {
+        return send(BinaryProtocol.ADD_AMOUNT, id, value).thenApply(result -> null);
+    }
+
+    /**
+     * @return amount of requests waiting for responses
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Closes the connection. Requests still waiting for responses fail.
+     */
+    public void close() throws IOException {
+        closed = true;
+        fail(new IOException("Client is closed"));
+        writer.interrupt();
+    }
+
+    private CompletableFuture<Long> send(byte operation, int id, long value) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        IOException cause = failure;
+        if (cause != null) {
+            future.completeExceptionally(cause);
+            return future;
+        }
+        int requestId = nextRequestId.getAndIncrement();
+        pending.put(requestId, future);
+        requests.add(new Request(requestId, operation, id, value));
+        // the connection may have failed after the check above and before the future was registered,
+        // in which case failPending could have missed it
+        cause = failure;
+        if (cause != null && pending.remove(requestId) != null)
+            future.completeExceptionally(cause);
+        return future;
+    }
+
+    private void writeRequests() {
+        ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        List<Request> batch = new ArrayList<>();
+        try {
+            while (failure == null) {
+                batch.add(requests.take());
+                requests.drainTo(batch, BUFFER_SIZE / BinaryProtocol.REQUEST_SIZE - 1);
+                out.clear();
+                for (Request request : batch)
+                    BinaryProtocol.putRequest(out, request.requestId, request.operation, request.id, request.value);
+                batch.clear();
+                out.flip();
+                while (out.hasRemaining())
+                    channel.write(out);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void readResponses() {
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                while (in.remaining() >= BinaryProtocol.RESPONSE_SIZE) {
+                    int requestId = in.getInt();
+                    byte status = in.get();
+                    long value = in.getLong();
+                    CompletableFuture<Long> future = pending.remove(requestId);
+                    if (future == null)
+                        continue;
+                    if (status == BinaryProtocol.STATUS_OK)
+                        future.complete(value);
+                    else if (status == BinaryProtocol.STATUS_SQL_ERROR)
+                        future.completeExceptionally(new SQLException("Service failed to execute query"));
+                    else if (status == BinaryProtocol.STATUS_WRONG_SHARD)
+                        future.completeExceptionally(new WrongShardException("Account does not belong to the shard"));
+                    else
+                        future.completeExceptionally(new IOException("Service failed to execute request"));
+                }
+                in.compact();
+            }
+            fail(new IOException("Connection closed by service"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records the first failure, closes the connection and fails all pending requests with that failure.
+     * Requests sent afterwards fail at once.
+     */
+    private void fail(IOException cause) {
+        synchronized (this) {
+            if (failure == null)
+                failure = closed ? new IOException("Client is closed") : cause;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already failed
+        }
+        failPending(failure);
+    }
+
+    private void failPending(IOException cause) {
+        for (Integer requestId : pending.keySet()) {
+            CompletableFuture<Long> future = pending.remove(requestId);
+            if (future != null)
+                future.completeExceptionally(cause);
+        }
+    }
+}
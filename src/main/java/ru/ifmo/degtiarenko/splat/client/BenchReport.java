@@ -0,0 +1,189 @@
+package ru.ifmo.degtiarenko.splat.client;
+
+import ru.ifmo.degtiarenko.splat.stat.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Result of a benchmark run: latency histograms and error counts of reads and writes.
+ * <p>
+ * Reports are stored as properties files with full histograms, so reports of several client processes
+ * which ran at the same time can be merged into one with exact percentiles.
+ */
+public class BenchReport {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final LatencyHistogram readLatency;
+    private final LatencyHistogram writeLatency;
+    private long readErrors;
+    private long writeErrors;
+    private double targetRate;
+    private double durationSeconds;
+    private int clientCount;
+
+    /**
+     * @param readLatency     latencies of reads from the intended send time, in nanoseconds
+     * @param writeLatency    latencies of writes from the intended send time, in nanoseconds
+     * @param readErrors      amount of failed reads
+     * @param writeErrors     amount of failed writes
+     * @param targetRate      requested rate in requests per second
+     * @param durationSeconds length of the measurement
+     */
+    public BenchReport(LatencyHistogram readLatency, LatencyHistogram writeLatency, long readErrors,
+                       long writeErrors, double targetRate, double durationSeconds) {
+        this.readLatency = readLatency;
+        this.writeLatency = writeLatency;
+        this.readErrors = readErrors;
+        this.writeErrors = writeErrors;
+        this.targetRate = targetRate;
+        this.durationSeconds = durationSeconds;
+        clientCount = 1;
+    }
+
+    /**
+     * Adds results of a client process which ran at the same time.
+     *
+     * @param other report to add
+     */
+    public void merge(BenchReport other) {
+        readLatency.add(other.readLatency);
+        writeLatency.add(other.writeLatency);
+        readErrors += other.readErrors;
+        writeErrors += other.writeErrors;
+        targetRate += other.targetRate;
+        durationSeconds = Math.max(durationSeconds, other.durationSeconds);
+        clientCount += other.clientCount;
+    }
+
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public long getReadErrors() {
+        return readErrors;
+    }
+
+    public long getWriteErrors() {
+        return writeErrors;
+    }
+
+    /**
+     * @return completed requests per second of the measurement
+     */
+    public double getThroughput() {
+        return (readLatency.getTotalCount() + writeLatency.getTotalCount()) / durationSeconds;
+    }
+
+    /**
+     * Prints throughput, errors and latency percentiles.
+     *
+     * @param out stream to print to
+     */
+    public void print(PrintStream out) {
+        long reads = readLatency.getTotalCount();
+        long writes = writeLatency.getTotalCount();
+        out.printf("Clients: %d, duration: %.1f s%n", clientCount, durationSeconds);
+        out.printf("Throughput: %.1f requests/s of %.1f requested (reads: %.1f/s, writes: %.1f/s)%n",
+                (reads + writes) / durationSeconds, targetRate, reads / durationSeconds, writes / durationSeconds);
+        out.printf("Errors: %d reads, %d writes%n", readErrors, writeErrors);
+        print(out, "getAmount", readLatency);
+        print(out, "addAmount", writeLatency);
+    }
+
+    /**
+     * Writes the report to a file.
+     *
+     * @param file file to write
+     * @throws IOException if failed to write the file
+     */
+    public void write(Path file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("clients", Integer.toString(clientCount));
+        properties.setProperty("target_rate", Double.toString(targetRate));
+        properties.setProperty("duration", Double.toString(durationSeconds));
+        properties.setProperty("read.errors", Long.toString(readErrors));
+        properties.setProperty("write.errors", Long.toString(writeErrors));
+        store(properties, "read", readLatency);
+        store(properties, "write", writeLatency);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            properties.store(writer, "AccountService benchmark report");
+        }
+    }
+
+    /**
+     * Reads a report written by {@link #write(Path)}.
+     *
+     * @param file file to read
+     * @return the report
+     * @throws IOException if failed to read the file or its format is wrong
+     */
+    public static BenchReport read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        try {
+            BenchReport report = new BenchReport(load(properties, "read"), load(properties, "write"),
+                    Long.parseLong(properties.getProperty("read.errors")),
+                    Long.parseLong(properties.getProperty("write.errors")),
+                    Double.parseDouble(properties.getProperty("target_rate")),
+                    Double.parseDouble(properties.getProperty("duration")));
+            report.clientCount = Integer.parseInt(properties.getProperty("clients"));
+            return report;
+        } catch (NullPointerException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Wrong format of benchmark report " + file, e);
+        }
+    }
+
+    private static void print(PrintStream out, String method, LatencyHistogram latency) {
+        if (latency.getTotalCount() == 0)
+            return;
+        out.printf("%s latency, ms: mean %.3f", method, latency.getMean() / NANOS_PER_MILLI);
+        for (double percentile : PERCENTILES)
+            out.printf(", p%s %.3f", percentile == (long) percentile ? Long.toString((long) percentile)
+                    : Double.toString(percentile), latency.getValueAtPercentile(percentile) / NANOS_PER_MILLI);
+        out.printf(", max %.3f%n", latency.getMax() / NANOS_PER_MILLI);
+    }
+
+    private static void store(Properties properties, String prefix, LatencyHistogram latency) {
+        StringBuilder buckets = new StringBuilder();
+        for (int i = 0; i < LatencyHistogram.getBucketCount(); i++) {
+            long count = latency.getCount(i);
+            if (count == 0)
+                continue;
+            if (buckets.length() > 0)
+                buckets.append(',');
+            buckets.append(i).append(':').append(count);
+        }
+        properties.setProperty(prefix + ".buckets", buckets.toString());
+        properties.setProperty(prefix + ".sum", Long.toString(latency.getSum()));
+        properties.setProperty(prefix + ".max", Long.toString(latency.getMax()));
+    }
+
+    private static LatencyHistogram load(Properties properties, String prefix) {
+        LatencyHistogram latency = new LatencyHistogram();
+        String buckets = properties.getProperty(prefix + ".buckets");
+        if (!buckets.isEmpty()) {
+            for (String bucket : buckets.split(",")) {
+                int separator = bucket.indexOf(':');
+                latency.addCount(Integer.parseInt(bucket.substring(0, separator)),
+                        Long.parseLong(bucket.substring(separator + 1)));
+            }
+        }
+        latency.addSummary(Long.parseLong(properties.getProperty(prefix + ".sum")),
+                Long.parseLong(properties.getProperty(prefix + ".max")));
+        return latency;
+    }
+}
@@ -0,0 +1,72 @@
+package ru.ifmo.degtiarenko.splat.client;
+
+import ru.ifmo.degtiarenko.splat.server.AccountService;
+
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Blocking <code>AccountService</code> over {@link AsyncAccountClient}, so the binary protocol can be used
+ * wherever the RMI stub is used. Batch methods pipeline all single requests and wait for them together.
+ */
+public class BinaryAccountService implements AccountService {
+    private final AsyncAccountClient client;
+
+    /**
+     * @param client connected client of the binary protocol
+     */
+    public BinaryAccountService(AsyncAccountClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public Long getAmount(Integer id) throws RemoteException, SQLException {
+        return await(client.getAmount(id));
+    }
+
+    @Override
+    public void addAmount(Integer id, Long value) throws RemoteException, SQLException {
+        await(client.addAmount(id, value));
+    }
+
+    @Override
+    public long[] getAmounts(int[] ids) throws RemoteException, SQLException {
+        List<CompletableFuture<Long>> futures = new ArrayList<>(ids.length);
+        for (int id : ids)
+            futures.add(client.getAmount(id));
+        long[] amounts = new long[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            amounts[i] = await(futures.get(i));
+        return amounts;
+    }
+
+    @Override
+    public void addAmounts(int[] ids, long[] values) throws RemoteException, SQLException {
+        if (ids.length != values.length)
+            throw new IllegalArgumentException("Amounts of identifiers and values differ");
+        List<CompletableFuture<Void>> futures = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++)
+            futures.add(client.addAmount(ids[i], values[i]));
+        for (CompletableFuture<Void> future : futures)
+            await(future);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws RemoteException, SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for response", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            if (e.getCause() instanceof RemoteException)
+                throw (RemoteException) e.getCause();
+            throw new RemoteException("Binary protocol request failed", e.getCause());
+        }
+    }
+}
@@ -1,25 +1,42 @@
 package ru.ifmo.degtiarenko.splat.client;
 
+import ru.ifmo.degtiarenko.splat.cluster.ConsistentHashRing;
+import ru.ifmo.degtiarenko.splat.cluster.ShardedAccountService;
+import ru.ifmo.degtiarenko.splat.cluster.ShardedBalanceQueryService;
 import ru.ifmo.degtiarenko.splat.config.Config;
 import ru.ifmo.degtiarenko.splat.server.AccountService;
+import ru.ifmo.degtiarenko.splat.server.BalanceChunk;
+import ru.ifmo.degtiarenko.splat.server.BalanceQueryService;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Test client for the <code>AccountService</code> implementation.
+ * <p>
+ * In <code>interactive</code> mode reader and writer threads call the service as fast as possible until
+ * <code>shutdown</code> is entered. In <code>bench</code> mode the client sends requests at a fixed rate
+ * with {@link LoadGenerator} and writes a {@link BenchReport}. Reports of several clients are merged with
+ * <code>Client merge report1 report2 ...</code>.
+ * <p>
+ * Besides, the client runs queries of {@link BalanceQueryService} over RMI:
+ * <code>Client sum from to</code>, <code>Client balances from to</code> and <code>Client top from to count</code>.
+ * In a cluster they are answered by all shards together, see {@link ShardedBalanceQueryService}.
  */
 public class Client {
     private AccountService service;
 
-    private final Random random;
     private final int rCount;
     private final int wCount;
     private final Identifiers ids;
@@ -37,7 +54,6 @@ public class Client {
         this.ids = ids;
         this.service = service;
 
-        random = new Random();
         threads = new ArrayList<>(rCount + wCount);
     }
 
@@ -46,13 +62,49 @@ public class Client {
      *
      * @param config configuration of <code>Client</code>
      * @return new <code>Client</code> instance.
-     * @throws RemoteException   if remote invocation of <code>AccountService method(s) is failed
+     * @throws IOException       if remote invocation of <code>AccountService method(s) is failed
      * @throws NotBoundException if attempt to find service is failed
      */
-    public static Client createClient(Config config) throws RemoteException, NotBoundException {
-        Registry registry = LocateRegistry.getRegistry(config.getServiceHostIp(), config.getServicePort());
+    public static Client createClient(Config config) throws IOException, NotBoundException {
+        return new Client(config.getClientRCount(), config.getClientWCount(), config.getClientRange(),
+                connectService(config));
+    }
+
+    /**
+     * Connects to the service, or to all shards of <code>cluster.shards</code> if it is set. Over the binary
+     * protocol shard i is reached at its host and the i-th port of <code>cluster.binary_ports</code>.
+     */
+    static AccountService connectService(Config config) throws IOException, NotBoundException {
+        boolean binary = config.getClientProtocol().equals("binary");
+        if (config.getClusterShards().isEmpty())
+            return connect(config, config.getServiceHostIp(),
+                    binary ? config.getServiceBinaryPort() : config.getServicePort());
+        List<AccountService> shards = new ArrayList<>();
+        for (int i = 0; i < config.getClusterShards().size(); i++) {
+            String shard = config.getClusterShards().get(i);
+            int separator = shard.lastIndexOf(':');
+            shards.add(connect(config, shard.substring(0, separator), binary
+                    ? config.getClusterBinaryPorts().get(i) : Integer.parseInt(shard.substring(separator + 1))));
+        }
+        return new ShardedAccountService(shards,
+                new ConsistentHashRing(config.getClusterShards(), config.getClusterVirtualNodes()));
+    }
+
+    /**
+     * Connects to one service with the configured protocol. Over RMI balances are cached
+     * if client.near_cache_staleness is set.
+     *
+     * @param port RMI registry port, or binary protocol port if client.protocol is binary
+     */
+    private static AccountService connect(Config config, String host, int port) throws IOException, NotBoundException {
+        if (config.getClientProtocol().equals("binary"))
+            return new BinaryAccountService(new AsyncAccountClient(host, port));
+        Registry registry = LocateRegistry.getRegistry(host, port);
         AccountService service = (AccountService) registry.lookup(config.getServiceBindingName());
-        return new Client(config.getClientRCount(), config.getClientWCount(), config.getClientRange(), service);
+        if (config.getClientNearCacheStaleness() > 0)
+            return new NearCachingAccountService(service, config.getClientNearCacheStaleness(),
+                    config.getClientNearCacheSize());
+        return service;
     }
 
     /**
@@ -78,21 +130,132 @@ public class Client {
         }
     }
 
+    /**
+     * Runs the benchmark configured by <code>client.bench_*</code> keys, prints the report and writes it
+     * to <code>client.bench_report</code>.
+     *
+     * @param config configuration of the benchmark
+     * @throws InterruptedException if interrupted while running the benchmark
+     * @throws IOException          if failed to write the report
+     */
+    public void runBenchmark(Config config) throws InterruptedException, IOException {
+        System.out.printf("Sending %.1f requests/s with %d threads: %d s warm-up, %d s measurement%n",
+                config.getClientBenchRate(), config.getClientBenchThreads(), config.getClientBenchWarmup(),
+                config.getClientBenchDuration());
+        BenchReport report = new LoadGenerator(service, ids, config.getClientBenchRate(),
+                config.getClientBenchReadRatio(), config.getClientBenchThreads(), config.getClientBenchWarmup(),
+                config.getClientBenchDuration()).run();
+        report.print(System.out);
+        report.write(Paths.get(config.getClientBenchReport()));
+    }
+
     private void shutdown() {
         threads.forEach(Thread::interrupt);
     }
 
+    private static void merge(String[] files) throws IOException {
+        BenchReport report = null;
+        for (String file : files) {
+            Path path = Paths.get(file);
+            if (report == null)
+                report = BenchReport.read(path);
+            else
+                report.merge(BenchReport.read(path));
+        }
+        if (report != null)
+            report.print(System.out);
+    }
+
+    /**
+     * Runs a query of <code>BalanceQueryService</code> and prints its result, balances one per line.
+     * In a cluster the query is sent to every shard and their answers are merged.
+     */
+    private static void query(Config config, String[] args) throws IOException, NotBoundException, SQLException {
+        if (config.getClusterShards().isEmpty()) {
+            Registry registry = LocateRegistry.getRegistry(config.getServiceHostIp(), config.getServicePort());
+            query(config, (BalanceQueryService) registry.lookup(config.getServiceBindingName()), args);
+            return;
+        }
+        List<BalanceQueryService> shards = new ArrayList<>();
+        for (String shard : config.getClusterShards()) {
+            int separator = shard.lastIndexOf(':');
+            Registry registry = LocateRegistry.getRegistry(shard.substring(0, separator),
+                    Integer.parseInt(shard.substring(separator + 1)));
+            shards.add((BalanceQueryService) registry.lookup(config.getServiceBindingName()));
+        }
+        try (ShardedBalanceQueryService service = new ShardedBalanceQueryService(shards)) {
+            query(config, service, args);
+        }
+    }
+
+    private static void query(Config config, BalanceQueryService service, String[] args)
+            throws IOException, SQLException {
+        int fromId = Integer.parseInt(args[1]);
+        int toId = Integer.parseInt(args[2]);
+        switch (args[0]) {
+            case "sum":
+                System.out.println(service.sumAmounts(fromId, toId));
+                break;
+            case "top":
+                print(service.getTopBalances(fromId, toId, Integer.parseInt(args[3])));
+                break;
+            default:
+                BalanceChunk chunk = service.getBalances(fromId, toId, config.getServiceQueryChunk());
+                print(chunk);
+                while (chunk.hasMore()) {
+                    chunk = service.getBalances(chunk.getNext(), toId, config.getServiceQueryChunk());
+                    print(chunk);
+                }
+                break;
+        }
+    }
+
+    private static void print(BalanceChunk chunk) {
+        for (int i = 0; i < chunk.size(); i++)
+            System.out.println(chunk.getId(i) + " " + chunk.getAmount(i));
+    }
+
     public static void main(String[] args) {
+        if (args.length > 0 && Arrays.asList("sum", "balances", "top").contains(args[0])) {
+            if (args.length < (args[0].equals("top") ? 4 : 3)) {
+                System.out.println("Usage: Client sum|balances from to, Client top from to count");
+                return;
+            }
+            try {
+                query(Config.getInstance(), args);
+            } catch (IOException | NotBoundException | SQLException | RuntimeException e) {
+                System.out.println("Query failed.");
+                System.err.println(e.getMessage());
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("merge")) {
+            try {
+                merge(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IOException e) {
+                System.out.println("Failed to merge reports.");
+                System.err.println(e.getMessage());
+            }
+            return;
+        }
+        Config config = Config.getInstance();
         Client client = null;
         try {
-            client = Client.createClient(Config.getInstance());
-        } catch (RemoteException | NotBoundException e) {
+            client = Client.createClient(config);
+        } catch (IOException | NotBoundException e) {
             e.printStackTrace();
         }
-        if (client != null) {
-            client.run();
-        } else {
+        if (client == null) {
             System.out.println("Failed to create client.");
+        } else if (config.getClientMode().equals("bench")) {
+            try {
+                client.runBenchmark(config);
+            } catch (InterruptedException | IOException e) {
+                System.out.println("Benchmark failed.");
+                System.err.println(e.getMessage());
+            }
+        } else {
+            client.run();
         }
     }
 
@@ -107,7 +270,7 @@ public class Client {
         public void run() {
             while (true) {
                 try {
-                    service.getAmount(ids.getRandomIdentifier());
+                    service.getAmount(ids.getRandomIdentifier(ThreadLocalRandom.current()));
                 } catch (RemoteException | SQLException e) {
                     e.printStackTrace();
                 }
@@ -128,7 +291,8 @@ public class Client {
         public void run() {
             while (true) {
                 try {
-                    service.addAmount(ids.getRandomIdentifier(), Math.abs(random.nextLong()));
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    service.addAmount(ids.getRandomIdentifier(random), Math.abs(random.nextLong()));
                 } catch (RemoteException | SQLException e) {
                     e.printStackTrace();
                 }
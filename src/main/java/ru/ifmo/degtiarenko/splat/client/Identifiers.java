@@ -1,19 +1,23 @@
 package ru.ifmo.degtiarenko.splat.client;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.regex.Pattern;
 
 /**
  * The <code>Identifiers</code> class encapsulates an information about acceptable <code>id</code> values and provides method
- * to get random value with equal probability for all values.
+ * to get random value according to a {@link KeyDistribution}, uniform by default.
+ * <p>
+ * Ranges are stored as arrays of their first values and of their offsets in the list of all acceptable values,
+ * so a position is turned into an identifier by binary search over the offsets.
  */
 public class Identifiers {
     private static final String BAD_ARGUMENT_MESSAGE = "Wrong string format.";
     private static final Pattern PATTERN = Pattern.compile("\\d+(-\\d+)?");
     private final Random random;
-    private final List<Range> ranges;
+    private final int[] froms;
+    private final int[] offsets;
+    private final KeyDistribution distribution;
     private int size;
 
     /**
@@ -23,12 +27,23 @@ public class Identifiers {
      * @throws BadArgumentException if <code>args</code> format is unacceptable
      */
     public Identifiers(String args) throws BadArgumentException {
+        this(args, "uniform");
+    }
+
+    /**
+     * @param args         acceptable values or ranges of values separated by commas
+     * @param distribution distribution of values in a format accepted by {@link KeyDistribution#parse(String, int)}
+     * @throws BadArgumentException if <code>args</code> or <code>distribution</code> format is unacceptable
+     */
+    public Identifiers(String args, String distribution) throws BadArgumentException {
         random = new Random();
-        ranges = new ArrayList<>();
 
         String[] stringRanges = args.split(",");
+        froms = new int[stringRanges.length];
+        offsets = new int[stringRanges.length];
 
-        for (String range : stringRanges) {
+        for (int i = 0; i < stringRanges.length; i++) {
+            String range = stringRanges[i];
             if (!PATTERN.matcher(range).matches()) {
                 throw new BadArgumentException(BAD_ARGUMENT_MESSAGE);
             } else {
@@ -36,13 +51,15 @@ public class Identifiers {
                 int from = Integer.parseInt(fromTo[0]);
                 int to = fromTo.length == 2 ? Integer.parseInt(fromTo[1]) : from;
 
-                if (from > to)
+                if (from > to || (long) size + (to - from + 1) > Integer.MAX_VALUE)
                     throw new BadArgumentException(BAD_ARGUMENT_MESSAGE);
 
-                ranges.add(new Range(from, size, size + (to - from + 1)));
+                froms[i] = from;
+                offsets[i] = size;
                 size += (to - from + 1);
             }
         }
+        this.distribution = KeyDistribution.parse(distribution, size);
     }
 
     /**
@@ -51,37 +68,35 @@ public class Identifiers {
      * @return identifier
      */
     public int getRandomIdentifier() {
-        int randomIndex = Math.abs(random.nextInt() % size);
-        int result = 0;
-        for (Range range : ranges) {
-            if (randomIndex < range.getRandomTo() && randomIndex >= range.getRandomFrom())
-                result = range.getElement(randomIndex - range.getRandomFrom());
-        }
-        return result;
+        return getRandomIdentifier(random);
     }
 
-    private static class Range {
-        private final int from;
-        private final int randomFrom;
-        private final int randomTo;
-
-        public Range(int from, int randomFrom, int randomTo) {
-            this.from = from;
-            this.randomFrom = randomFrom;
-            this.randomTo = randomTo;
-        }
-
-
-        public int getRandomFrom() {
-            return randomFrom;
-        }
+    /**
+     * Gets random acceptable identifier value using the given source of randomness, so that concurrent
+     * callers do not contend on one <code>Random</code>.
+     *
+     * @param random source of randomness, for example <code>ThreadLocalRandom.current()</code>
+     * @return identifier
+     */
+    public int getRandomIdentifier(Random random) {
+        return getIdentifier(distribution.nextIndex(random));
+    }
 
-        public int getRandomTo() {
-            return randomTo;
-        }
+    /**
+     * @param index position in the list of acceptable values
+     * @return identifier at the position
+     */
+    public int getIdentifier(int index) {
+        int range = Arrays.binarySearch(offsets, index);
+        if (range < 0)
+            range = -range - 2;
+        return froms[range] + (index - offsets[range]);
+    }
 
-        public int getElement(int index) {
-            return (from + index);
-        }
+    /**
+     * @return amount of acceptable values
+     */
+    public int size() {
+        return size;
     }
 }
@@ -0,0 +1,151 @@
+package ru.ifmo.degtiarenko.splat.client;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distribution of positions in the list of acceptable identifiers.
+ * <p>
+ * Accepted formats of <code>client.distribution</code>:
+ * <ul>
+ * <li><code>uniform</code> - every identifier with equal probability;</li>
+ * <li><code>zipfian:s</code> - the i-th identifier with probability proportional to 1/i<sup>s</sup>,
+ * so the first identifiers are the hottest;</li>
+ * <li><code>hotspot:x:y</code> - part <code>x</code> of requests goes to the first part <code>y</code>
+ * of identifiers, e.g. <code>hotspot:0.9:0.05</code>;</li>
+ * <li><code>sequential</code> - all identifiers one after another, shared by all threads.</li>
+ * </ul>
+ */
+public interface KeyDistribution {
+    /**
+     * @param random source of randomness of the calling thread
+     * @return position from 0 inclusive to the amount of identifiers exclusive
+     */
+    int nextIndex(Random random);
+
+    /**
+     * Creates a distribution over <code>size</code> identifiers.
+     *
+     * @param spec distribution in one of the accepted formats
+     * @param size amount of identifiers
+     * @return distribution
+     * @throws BadArgumentException if <code>spec</code> format is unacceptable
+     */
+    static KeyDistribution parse(String spec, int size) throws BadArgumentException {
+        String[] parts = spec.trim().toLowerCase().split(":");
+        try {
+            switch (parts[0]) {
+                case "uniform":
+                    if (parts.length == 1)
+                        return random -> random.nextInt(size);
+                    break;
+                case "sequential":
+                    if (parts.length == 1) {
+                        AtomicLong next = new AtomicLong();
+                        return random -> (int) (next.getAndIncrement() % size);
+                    }
+                    break;
+                case "zipfian":
+                    if (parts.length == 2)
+                        return new Zipfian(size, Double.parseDouble(parts[1]));
+                    break;
+                case "hotspot":
+                    if (parts.length == 3)
+                        return new Hotspot(size, Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new BadArgumentException("Wrong distribution parameters: " + spec);
+        }
+        throw new BadArgumentException("Unknown distribution: " + spec);
+    }
+
+    /**
+     * Zipfian distribution sampled by rejection-inversion (Hormann and Derflinger), which needs
+     * neither a table of probabilities nor a precomputed normalization constant.
+     */
+    final class Zipfian implements KeyDistribution {
+        private final int size;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralSize;
+        private final double threshold;
+
+        Zipfian(int size, double exponent) {
+            if (!(exponent > 0))
+                throw new IllegalArgumentException("Exponent must be positive");
+            this.size = size;
+            this.exponent = exponent;
+            hIntegralX1 = hIntegral(1.5) - 1;
+            hIntegralSize = hIntegral(size + 0.5);
+            threshold = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        @Override
+        public int nextIndex(Random random) {
+            while (true) {
+                double u = hIntegralSize + random.nextDouble() * (hIntegralX1 - hIntegralSize);
+                double x = hIntegralInverse(u);
+                int k = (int) (x + 0.5);
+                if (k < 1)
+                    k = 1;
+                else if (k > size)
+                    k = size;
+                if (k - x <= threshold || u >= hIntegral(k + 0.5) - h(k))
+                    return k - 1;
+            }
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return expm1OverX((1 - exponent) * logX) * logX;
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = Math.max(x * (1 - exponent), -1);
+            return Math.exp(log1pOverX(t) * x);
+        }
+
+        private static double log1pOverX(double x) {
+            if (Math.abs(x) > 1e-8)
+                return Math.log1p(x) / x;
+            return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+
+        private static double expm1OverX(double x) {
+            if (Math.abs(x) > 1e-8)
+                return Math.expm1(x) / x;
+            return 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+        }
+    }
+
+    /**
+     * Part of requests goes uniformly to the hot identifiers at the beginning, the rest uniformly to others.
+     */
+    final class Hotspot implements KeyDistribution {
+        private final int size;
+        private final int hotSize;
+        private final double hotTraffic;
+
+        Hotspot(int size, double hotTraffic, double hotKeys) {
+            if (hotTraffic < 0 || hotTraffic > 1 || hotKeys <= 0 || hotKeys > 1)
+                throw new IllegalArgumentException("Parts must be between 0 and 1");
+            this.size = size;
+            this.hotTraffic = hotTraffic;
+            hotSize = Math.max((int) (size * hotKeys), 1);
+        }
+
+        @Override
+        public int nextIndex(Random random) {
+            if (hotSize == size || random.nextDouble() < hotTraffic)
+                return random.nextInt(hotSize);
+            return hotSize + random.nextInt(size - hotSize);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ru.ifmo.degtiarenko.splat.client;
+
+import ru.ifmo.degtiarenko.splat.server.AccountService;
+import ru.ifmo.degtiarenko.splat.stat.LatencyHistogram;
+
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator: sends requests on a fixed schedule instead of as fast as possible.
+ * <p>
+ * The target rate is split between threads, every thread sends its requests at fixed intended times.
+ * Latency is measured from the intended time, not from the actual send time, so when the service stalls,
+ * requests which should have been sent during the stall are reported with the time they waited
+ * (no coordinated omission). Requests of the warm-up are sent but not recorded.
+ */
+public class LoadGenerator {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final int MAX_DELTA = 1000;
+
+    private final AccountService service;
+    private final Identifiers ids;
+    private final double rate;
+    private final double readRatio;
+    private final int threadCount;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final LatencyHistogram readLatency;
+    private final LatencyHistogram writeLatency;
+    private final LongAdder readErrors;
+    private final LongAdder writeErrors;
+
+    /**
+     * @param service         service to send requests to
+     * @param ids             allowed account identifiers
+     * @param rate            total rate in requests per second
+     * @param readRatio       part of requests which are reads, from 0 to 1
+     * @param threadCount     amount of sending threads, must exceed rate multiplied by latency in seconds
+     * @param warmupSeconds   time to send requests before recording starts
+     * @param durationSeconds time to send recorded requests
+     */
+    public LoadGenerator(AccountService service, Identifiers ids, double rate, double readRatio, int threadCount,
+                         long warmupSeconds, long durationSeconds) {
+        this.service = service;
+        this.ids = ids;
+        this.rate = rate;
+        this.readRatio = readRatio;
+        this.threadCount = threadCount;
+        warmupNanos = warmupSeconds * NANOS_PER_SECOND;
+        durationNanos = durationSeconds * NANOS_PER_SECOND;
+        readLatency = new LatencyHistogram();
+        writeLatency = new LatencyHistogram();
+        readErrors = new LongAdder();
+        writeErrors = new LongAdder();
+    }
+
+    /**
+     * Sends requests during the warm-up and the measurement. Returns when all threads are finished.
+     *
+     * @return results of the measurement
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    public BenchReport run() throws InterruptedException {
+        long interval = (long) (NANOS_PER_SECOND * threadCount / rate);
+        long start = System.nanoTime();
+        long measurementStart = start + warmupNanos;
+        long end = measurementStart + durationNanos;
+        List<Thread> threads = new ArrayList<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            long first = start + interval * i / threadCount;
+            threads.add(new Thread(() -> send(first, interval, measurementStart, end), "load-generator"));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads)
+            thread.join();
+        return new BenchReport(readLatency, writeLatency, readErrors.sum(), writeErrors.sum(), rate,
+                (double) durationNanos / NANOS_PER_SECOND);
+    }
+
+    private void send(long first, long interval, long measurementStart, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long intended = first; intended < end; intended += interval) {
+            long delay;
+            while ((delay = intended - System.nanoTime()) > 0)
+                LockSupport.parkNanos(delay);
+            boolean read = random.nextDouble() < readRatio;
+            boolean failed = false;
+            try {
+                if (read)
+                    service.getAmount(ids.getRandomIdentifier(random));
+                else
+                    service.addAmount(ids.getRandomIdentifier(random), (long) random.nextInt(1, MAX_DELTA + 1));
+            } catch (RemoteException | SQLException e) {
+                failed = true;
+            }
+            if (intended < measurementStart)
+                continue;
+            if (failed)
+                (read ? readErrors : writeErrors).increment();
+            else
+                (read ? readLatency : writeLatency).record(System.nanoTime() - intended);
+        }
+    }
+}
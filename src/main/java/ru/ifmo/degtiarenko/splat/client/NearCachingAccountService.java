@@ -0,0 +1,164 @@
+package ru.ifmo.degtiarenko.splat.client;
+
+import ru.ifmo.degtiarenko.splat.server.AccountService;
+import ru.ifmo.degtiarenko.splat.server.AmountLease;
+import ru.ifmo.degtiarenko.splat.server.Invalidations;
+import ru.ifmo.degtiarenko.splat.server.LeaseService;
+
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>AccountService</code> which caches balances returned by <code>getAmount</code> under leases
+ * granted by the service.
+ * <p>
+ * A cached balance is never older than the staleness bound: leases are requested not longer than it and
+ * are counted from the moment the request was sent. Besides, a daemon thread polls invalidations of leased
+ * accounts twice per staleness bound and drops changed balances, and changes made through this object
+ * drop the balance at once, so the client reads its own writes. Batch reads are not cached.
+ */
+public class NearCachingAccountService implements AccountService, AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(NearCachingAccountService.class.getName());
+
+    private final AccountService service;
+    private final LeaseService leaseService;
+    private final long staleness;
+    private final int maxSize;
+    private final ConcurrentMap<Integer, Entry> entries;
+    private final AtomicLong invalidationCount;
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+    private final ScheduledExecutorService poller;
+    private long position;
+
+    private static final class Entry {
+        final long amount;
+        final long expiration;
+
+        Entry(long amount, long expiration) {
+            this.amount = amount;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * @param service   service to send requests to, must also implement <code>LeaseService</code>
+     * @param staleness the longest time to use a cached balance in milliseconds
+     * @param maxSize   maximal amount of cached balances
+     */
+    public NearCachingAccountService(AccountService service, long staleness, int maxSize) {
+        if (!(service instanceof LeaseService))
+            throw new IllegalArgumentException("Service does not grant leases");
+        this.service = service;
+        leaseService = (LeaseService) service;
+        this.staleness = staleness;
+        this.maxSize = maxSize;
+        entries = new ConcurrentHashMap<>();
+        invalidationCount = new AtomicLong();
+        hitCount = new LongAdder();
+        missCount = new LongAdder();
+        position = -1;
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "near-cache-invalidations");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(staleness / 2, 1);
+        poller.scheduleWithFixedDelay(this::poll, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Long getAmount(Integer id) throws RemoteException, SQLException {
+        Entry entry = entries.get(id);
+        long start = System.nanoTime();
+        if (entry != null) {
+            if (entry.expiration - start > 0) {
+                hitCount.increment();
+                return entry.amount;
+            }
+            entries.remove(id, entry);
+        }
+        missCount.increment();
+        long invalidations = invalidationCount.get();
+        AmountLease lease = leaseService.leaseAmount(id, staleness);
+        if (lease.getDuration() > 0 && entries.size() < maxSize && invalidationCount.get() == invalidations)
+            entries.put(id, new Entry(lease.getAmount(), start + TimeUnit.MILLISECONDS.toNanos(lease.getDuration())));
+        return lease.getAmount();
+    }
+
+    @Override
+    public void addAmount(Integer id, Long value) throws RemoteException, SQLException {
+        try {
+            service.addAmount(id, value);
+        } finally {
+            invalidate(id);
+        }
+    }
+
+    @Override
+    public long[] getAmounts(int[] ids) throws RemoteException, SQLException {
+        return service.getAmounts(ids);
+    }
+
+    @Override
+    public void addAmounts(int[] ids, long[] values) throws RemoteException, SQLException {
+        try {
+            service.addAmounts(ids, values);
+        } finally {
+            for (int id : ids)
+                invalidate(id);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * Stops polling invalidations.
+     */
+    public void close() {
+        poller.shutdown();
+    }
+
+    /**
+     * Drops the balance. A lease requested before the call is not cached, because it may have been
+     * granted before the change.
+     */
+    private void invalidate(int id) {
+        invalidationCount.incrementAndGet();
+        entries.remove(id);
+    }
+
+    private void poll() {
+        try {
+            Invalidations invalidations = leaseService.pollInvalidations(position);
+            if (invalidations.isComplete()) {
+                for (int id : invalidations.getIds())
+                    invalidate(id);
+            } else {
+                invalidationCount.incrementAndGet();
+                entries.clear();
+            }
+            position = invalidations.getNext();
+        } catch (RemoteException e) {
+            LOGGER.log(Level.WARNING, "Failed to poll invalidations, cached balances are dropped", e);
+            invalidationCount.incrementAndGet();
+            entries.clear();
+            position = -1;
+        }
+    }
+}
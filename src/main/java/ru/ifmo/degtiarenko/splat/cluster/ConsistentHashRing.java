@@ -0,0 +1,76 @@
+package ru.ifmo.degtiarenko.splat.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring which maps account identifiers to shards.
+ * <p>
+ * Every shard is placed on the ring at many points (virtual nodes) derived from its name, and an account
+ * belongs to the shard of the first point clockwise from the account's hash. So shards get nearly equal
+ * parts of accounts, and adding or removing a shard moves only the accounts between its points and
+ * their predecessors. Points are kept in a sorted primitive array and looked up by binary search.
+ */
+public class ConsistentHashRing {
+    private final long[] points;
+    private final int[] shards;
+    private final int shardCount;
+
+    /**
+     * @param shardNames   names of shards, e.g. their addresses; the order does not affect the mapping
+     * @param virtualNodes amount of points of every shard on the ring
+     */
+    public ConsistentHashRing(List<String> shardNames, int virtualNodes) {
+        if (shardNames.isEmpty())
+            throw new IllegalArgumentException("Ring must have at least one shard");
+        shardCount = shardNames.size();
+        int count = shardCount * virtualNodes;
+        long[] entries = new long[count];
+        long[] hashes = new long[count];
+        for (int shard = 0, i = 0; shard < shardCount; shard++) {
+            for (int node = 0; node < virtualNodes; node++, i++)
+                hashes[i] = hash(shardNames.get(shard) + "#" + node);
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        points = new long[count];
+        shards = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            shards[i] = order[i] / virtualNodes;
+        }
+    }
+
+    /**
+     * @param id identifier of an account
+     * @return index of the shard owning the account, in the order of names given to the constructor
+     */
+    public int shardFor(int id) {
+        int index = Arrays.binarySearch(points, mix(id));
+        if (index < 0)
+            index = -index - 1;
+        return shards[index == points.length ? 0 : index];
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    private static long hash(String name) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
@@ -0,0 +1,155 @@
+package ru.ifmo.degtiarenko.splat.cluster;
+
+import ru.ifmo.degtiarenko.splat.server.AccountService;
+
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <code>AccountService</code> which routes every call to the shard owning the account.
+ * <p>
+ * Shards are chosen by a {@link ConsistentHashRing}. Batch calls are split by shard, parts for different
+ * shards are sent in parallel, and results are put back in the order of the request. A batch is atomic
+ * neither across shards nor within one.
+ */
+public class ShardedAccountService implements AccountService, AutoCloseable {
+    private final AccountService[] shards;
+    private final ConsistentHashRing ring;
+    private final ExecutorService executor;
+
+    /**
+     * @param shards services of shards, in the order of names given to the ring
+     * @param ring   ring of the same shards
+     */
+    public ShardedAccountService(List<AccountService> shards, ConsistentHashRing ring) {
+        if (shards.size() != ring.getShardCount())
+            throw new IllegalArgumentException("Amounts of shards and ring nodes differ");
+        this.shards = shards.toArray(new AccountService[0]);
+        this.ring = ring;
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "shard-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Long getAmount(Integer id) throws RemoteException, SQLException {
+        return shards[ring.shardFor(id)].getAmount(id);
+    }
+
+    @Override
+    public void addAmount(Integer id, Long value) throws RemoteException, SQLException {
+        shards[ring.shardFor(id)].addAmount(id, value);
+    }
+
+    @Override
+    public long[] getAmounts(int[] ids) throws RemoteException, SQLException {
+        int[][] positions = split(ids);
+        long[] amounts = new long[ids.length];
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int shard = 0; shard < shards.length; shard++) {
+            int[] shardPositions = positions[shard];
+            if (shardPositions.length == 0)
+                continue;
+            AccountService service = shards[shard];
+            futures.add(executor.submit(() -> {
+                long[] shardAmounts = service.getAmounts(select(ids, shardPositions));
+                for (int i = 0; i < shardPositions.length; i++)
+                    amounts[shardPositions[i]] = shardAmounts[i];
+                return null;
+            }));
+        }
+        awaitAll(futures);
+        return amounts;
+    }
+
+    @Override
+    public void addAmounts(int[] ids, long[] values) throws RemoteException, SQLException {
+        if (ids.length != values.length)
+            throw new IllegalArgumentException("Amounts of identifiers and values differ");
+        int[][] positions = split(ids);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int shard = 0; shard < shards.length; shard++) {
+            int[] shardPositions = positions[shard];
+            if (shardPositions.length == 0)
+                continue;
+            AccountService service = shards[shard];
+            futures.add(executor.submit(() -> {
+                long[] shardValues = new long[shardPositions.length];
+                for (int i = 0; i < shardPositions.length; i++)
+                    shardValues[i] = values[shardPositions[i]];
+                service.addAmounts(select(ids, shardPositions), shardValues);
+                return null;
+            }));
+        }
+        awaitAll(futures);
+    }
+
+    /**
+     * Stops threads sending batch parts.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return positions of <code>ids</code> owned by every shard
+     */
+    private int[][] split(int[] ids) {
+        int[] owners = new int[ids.length];
+        int[] counts = new int[shards.length];
+        for (int i = 0; i < ids.length; i++) {
+            owners[i] = ring.shardFor(ids[i]);
+            counts[owners[i]]++;
+        }
+        int[][] positions = new int[shards.length][];
+        for (int shard = 0; shard < shards.length; shard++)
+            positions[shard] = new int[counts[shard]];
+        int[] filled = new int[shards.length];
+        for (int i = 0; i < ids.length; i++)
+            positions[owners[i]][filled[owners[i]]++] = i;
+        return positions;
+    }
+
+    private static int[] select(int[] ids, int[] positions) {
+        int[] selected = new int[positions.length];
+        for (int i = 0; i < positions.length; i++)
+            selected[i] = ids[positions[i]];
+        return selected;
+    }
+
+    /**
+     * Waits for requests sent to shards and rethrows the first failure.
+     *
+     * @return results in the order of <code>futures</code>
+     */
+    static <T> List<T> awaitAll(List<Future<T>> futures) throws RemoteException, SQLException {
+        List<T> results = new ArrayList<>(futures.size());
+        Throwable failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for shards", e);
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+        }
+        if (failure instanceof SQLException)
+            throw (SQLException) failure;
+        if (failure instanceof RemoteException)
+            throw (RemoteException) failure;
+        if (failure != null)
+            throw new RemoteException("Shard request failed", failure);
+        return results;
+    }
+}
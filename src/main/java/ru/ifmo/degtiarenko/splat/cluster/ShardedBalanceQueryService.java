@@ -0,0 +1,114 @@
+package ru.ifmo.degtiarenko.splat.cluster;
+
+import ru.ifmo.degtiarenko.splat.server.BalanceChunk;
+import ru.ifmo.degtiarenko.splat.server.BalanceQueryService;
+
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <code>BalanceQueryService</code> of a whole cluster: every query is sent to all shards in parallel,
+ * because every shard answers for its own accounts only, and the answers are merged.
+ * <p>
+ * Sums are added up. Top balances are merged by balance, since the best accounts of the cluster are among
+ * the best ones of their shards. Chunks of balances are merged by identifier up to the smallest identifier
+ * where a shard stopped, because beyond it that shard may have accounts not returned yet.
+ */
+public class ShardedBalanceQueryService implements BalanceQueryService, AutoCloseable {
+    private static final Comparator<long[]> BEST_FIRST = Comparator.<long[]>comparingLong(entry -> -entry[1])
+            .thenComparingLong(entry -> entry[0]);
+
+    private final BalanceQueryService[] shards;
+    private final ExecutorService executor;
+
+    /**
+     * @param shards services of all shards of the cluster
+     */
+    public ShardedBalanceQueryService(List<BalanceQueryService> shards) {
+        this.shards = shards.toArray(new BalanceQueryService[0]);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "shard-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public long sumAmounts(int fromId, int toId) throws RemoteException, SQLException {
+        long sum = 0;
+        for (long shardSum : ask(shard -> () -> shard.sumAmounts(fromId, toId)))
+            sum = Math.addExact(sum, shardSum);
+        return sum;
+    }
+
+    @Override
+    public BalanceChunk getBalances(int fromId, int toId, int maxSize) throws RemoteException, SQLException {
+        List<BalanceChunk> chunks = ask(shard -> () -> shard.getBalances(fromId, toId, maxSize));
+        long last = toId;
+        for (BalanceChunk chunk : chunks) {
+            if (chunk.hasMore())
+                last = Math.min(last, chunk.getNext() - 1L);
+        }
+        List<long[]> balances = new ArrayList<>();
+        for (BalanceChunk chunk : chunks) {
+            for (int i = 0; i < chunk.size() && chunk.getId(i) <= last; i++)
+                balances.add(new long[]{chunk.getId(i), chunk.getAmount(i)});
+        }
+        balances.sort(Comparator.comparingLong(entry -> entry[0]));
+        if (balances.size() > maxSize) {
+            balances = balances.subList(0, maxSize);
+            last = balances.get(maxSize - 1)[0];
+        }
+        boolean more = last < toId;
+        return toChunk(balances, more, more ? (int) last + 1 : 0);
+    }
+
+    @Override
+    public BalanceChunk getTopBalances(int fromId, int toId, int count) throws RemoteException, SQLException {
+        List<long[]> balances = new ArrayList<>();
+        for (BalanceChunk chunk : ask(shard -> () -> shard.getTopBalances(fromId, toId, count))) {
+            for (int i = 0; i < chunk.size(); i++)
+                balances.add(new long[]{chunk.getId(i), chunk.getAmount(i)});
+        }
+        balances.sort(BEST_FIRST);
+        return toChunk(balances.subList(0, Math.min(count, balances.size())), false, 0);
+    }
+
+    /**
+     * Stops threads sending queries.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private <T> List<T> ask(ShardQuery<T> query) throws RemoteException, SQLException {
+        List<Future<T>> futures = new ArrayList<>(shards.length);
+        for (BalanceQueryService shard : shards)
+            futures.add(executor.submit(query.of(shard)));
+        return ShardedAccountService.awaitAll(futures);
+    }
+
+    private static BalanceChunk toChunk(List<long[]> balances, boolean more, int next) {
+        int[] ids = new int[balances.size()];
+        long[] amounts = new long[balances.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (int) balances.get(i)[0];
+            amounts[i] = balances.get(i)[1];
+        }
+        return new BalanceChunk(ids, amounts, more, next);
+    }
+
+    /**
+     * Query of one shard.
+     */
+    private interface ShardQuery<T> {
+        Callable<T> of(BalanceQueryService shard);
+    }
+}
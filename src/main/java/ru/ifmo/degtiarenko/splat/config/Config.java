@@ -2,9 +2,15 @@ package ru.ifmo.degtiarenko.splat.config;
 
 import ru.ifmo.degtiarenko.splat.client.BadArgumentException;
 import ru.ifmo.degtiarenko.splat.client.Identifiers;
+import ru.ifmo.degtiarenko.splat.server.AccountTable;
+import ru.ifmo.degtiarenko.splat.server.CacheWarmer;
+import ru.ifmo.degtiarenko.splat.server.DBConnection;
+import ru.ifmo.degtiarenko.splat.server.Journal;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -15,47 +21,174 @@ public class Config {
     private final int servicePort;
     private final String serviceHostIp;
     private final String serviceBindingName;
+    private final int serviceBinaryPort;
+    private final int serviceBinaryWorkers;
+    private final long serviceLeaseDuration;
+    private final int serviceQueryChunk;
     private final String jdbcUrl;
     private final String jdbcUser;
     private final String jdbcPassword;
+    private final int jdbcPoolSize;
+    private final long jdbcPoolTimeout;
+    private final int jdbcValidationTimeout;
+    private final int jdbcExecutorThreads;
+    private final int jdbcExecutorQueue;
+    private final long jdbcExecutorTimeout;
+    private final DBConnection.FlushMode jdbcFlushMode;
+    private final int jdbcFlushChunk;
+    private final int jdbcFlushThreads;
     private final int clientRCount;
     private final int clientWCount;
     private final Identifiers clientRange;
+    private final String clientProtocol;
+    private final String clientMode;
+    private final double clientBenchRate;
+    private final double clientBenchReadRatio;
+    private final int clientBenchThreads;
+    private final long clientBenchWarmup;
+    private final long clientBenchDuration;
+    private final String clientBenchReport;
+    private final long clientNearCacheStaleness;
+    private final int clientNearCacheSize;
+    private final int cacheCapacity;
+    private final long flushInterval;
+    private final int flushDirtyLimit;
+    private final double flushMemoryRatio;
+    private final AccountTable.Storage cacheStorage;
+    private final CacheWarmer.Mode warmupMode;
+    private final int warmupLimit;
+    private final int warmupPartitions;
+    private final int warmupFetchSize;
+    private final boolean warmupBlocking;
+    private final String snapshotFile;
+    private final long snapshotInterval;
+    private final boolean deltaFlush;
+    private final int hotThreshold;
+    private final int hotAccounts;
+    private final long statLogInterval;
+    private final int statHotKeys;
+    private final long statHotKeysHalfLife;
+    private final List<String> clusterShards;
+    private final List<Integer> clusterBinaryPorts;
+    private final String clusterShard;
+    private final int clusterVirtualNodes;
+    private final Journal.Mode journalMode;
+    private final String journalDirectory;
+    private final int journalSegmentSize;
+    private final long journalFlushInterval;
+    private final long journalCommitDelay;
 
     /**
-     * Gets <code>Config</code> instance created from config.xml
+     * Gets <code>Config</code> instance created from config.xml, or from the file set by
+     * the <code>config</code> system property
      *
      * @return instance of <code>Config</code>
      */
     public static Config getInstance() {
         if (INSTANCE == null)
             try {
-                INSTANCE = new Config();
+                Properties properties = new Properties();
+                properties.loadFromXML(new FileInputStream(System.getProperty("config", "config.xml")));
+                INSTANCE = new Config(properties);
             } catch (IOException e) {
                 System.out.println("Error: cannot read config.xml.");
                 System.err.println(e.toString());
                 System.exit(0);
             } catch (BadArgumentException e) {
-                System.out.println("Error: client.range value is not in acceptable format");
+                System.out.println("Error: client.range or client.distribution value is not in acceptable format");
+                System.err.println(e.toString());
+                System.exit(0);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error: config.xml contains a value out of range");
                 System.err.println(e.toString());
                 System.exit(0);
             }
         return INSTANCE;
     }
 
-    private Config() throws IOException, BadArgumentException {
-        Properties properties = new Properties();
-        properties.loadFromXML(new FileInputStream("config.xml"));
-
+    /**
+     * Creates configuration from properties instead of config.xml, for example in benchmarks and tests.
+     *
+     * @param properties properties with the same keys as config.xml
+     * @throws BadArgumentException     if client.range value is not in acceptable format
+     * @throws IllegalArgumentException if some other value is out of range
+     */
+    public Config(Properties properties) throws BadArgumentException {
         servicePort = Integer.parseInt(properties.getProperty("service.port"));
         serviceHostIp = properties.getProperty("service.host_ip");
         serviceBindingName = properties.getProperty("service.binding_name");
+        serviceBinaryPort = Integer.parseInt(properties.getProperty("service.binary_port", "0"));
+        serviceBinaryWorkers = Integer.parseInt(properties.getProperty("service.binary_workers", "16"));
+        serviceLeaseDuration = Long.parseLong(properties.getProperty("service.lease_duration", "1000"));
+        serviceQueryChunk = Integer.parseInt(properties.getProperty("service.query_chunk", "10000"));
         jdbcUrl = properties.getProperty("jdbc.url");
         jdbcUser = properties.getProperty("jdbc.user");
         jdbcPassword = properties.getProperty("jdbc.pass");
+        jdbcPoolSize = Integer.parseInt(properties.getProperty("jdbc.pool_size", "8"));
+        jdbcPoolTimeout = Long.parseLong(properties.getProperty("jdbc.pool_timeout", "5000"));
+        jdbcValidationTimeout = Integer.parseInt(properties.getProperty("jdbc.validation_timeout", "5"));
+        jdbcExecutorThreads = Integer.parseInt(properties.getProperty("jdbc.executor_threads",
+                Integer.toString(jdbcPoolSize)));
+        jdbcExecutorQueue = Integer.parseInt(properties.getProperty("jdbc.executor_queue", "1000"));
+        jdbcExecutorTimeout = Long.parseLong(properties.getProperty("jdbc.executor_timeout", "5000"));
+        jdbcFlushMode = DBConnection.FlushMode.valueOf(properties.getProperty("jdbc.flush_mode", "batch").toUpperCase());
+        jdbcFlushChunk = Integer.parseInt(properties.getProperty("jdbc.flush_chunk", "1000"));
+        jdbcFlushThreads = Integer.parseInt(properties.getProperty("jdbc.flush_threads", "1"));
         clientRCount = Integer.parseInt(properties.getProperty("client.rcount"));
         clientWCount = Integer.parseInt(properties.getProperty("client.wcount"));
-        clientRange = new Identifiers(properties.getProperty("client.range"));
+        clientRange = new Identifiers(properties.getProperty("client.range"),
+                properties.getProperty("client.distribution", "uniform"));
+        clientProtocol = properties.getProperty("client.protocol", "rmi");
+        clientMode = properties.getProperty("client.mode", "interactive");
+        clientBenchRate = Double.parseDouble(properties.getProperty("client.bench_rate", "10000"));
+        clientBenchReadRatio = Double.parseDouble(properties.getProperty("client.bench_read_ratio", "0.5"));
+        clientBenchThreads = Integer.parseInt(properties.getProperty("client.bench_threads", "64"));
+        clientBenchWarmup = Long.parseLong(properties.getProperty("client.bench_warmup", "10"));
+        clientBenchDuration = Long.parseLong(properties.getProperty("client.bench_duration", "60"));
+        clientBenchReport = properties.getProperty("client.bench_report", "bench-report.properties");
+        clientNearCacheStaleness = Long.parseLong(properties.getProperty("client.near_cache_staleness", "0"));
+        clientNearCacheSize = Integer.parseInt(properties.getProperty("client.near_cache_size", "100000"));
+        cacheCapacity = Integer.parseInt(properties.getProperty("cache.capacity", "4000000"));
+        flushInterval = Long.parseLong(properties.getProperty("cache.flush_interval", "1000"));
+        flushDirtyLimit = Integer.parseInt(properties.getProperty("cache.flush_dirty_limit", "100000"));
+        flushMemoryRatio = Double.parseDouble(properties.getProperty("cache.flush_memory_ratio", "0.8"));
+        cacheStorage = AccountTable.Storage.valueOf(properties.getProperty("cache.storage", "heap").toUpperCase());
+        warmupMode = CacheWarmer.Mode.valueOf(properties.getProperty("cache.warmup", "none").toUpperCase());
+        warmupLimit = Integer.parseInt(properties.getProperty("cache.warmup_limit", "0"));
+        warmupPartitions = Integer.parseInt(properties.getProperty("cache.warmup_partitions", "4"));
+        warmupFetchSize = Integer.parseInt(properties.getProperty("cache.warmup_fetch_size", "10000"));
+        warmupBlocking = Boolean.parseBoolean(properties.getProperty("cache.warmup_blocking", "true"));
+        snapshotFile = properties.getProperty("cache.snapshot_file", "");
+        snapshotInterval = Long.parseLong(properties.getProperty("cache.snapshot_interval", "0"));
+        deltaFlush = Boolean.parseBoolean(properties.getProperty("cache.delta_flush", "false"));
+        hotThreshold = Integer.parseInt(properties.getProperty("cache.hot_threshold", "256"));
+        hotAccounts = Integer.parseInt(properties.getProperty("cache.hot_accounts", "64"));
+        statLogInterval = Long.parseLong(properties.getProperty("stat.log_interval", "0"));
+        statHotKeys = Integer.parseInt(properties.getProperty("stat.hot_keys", "10"));
+        statHotKeysHalfLife = Long.parseLong(properties.getProperty("stat.hot_keys_half_life", "10"));
+        clusterShards = new ArrayList<>();
+        for (String shard : properties.getProperty("cluster.shards", "").split(",")) {
+            if (!shard.trim().isEmpty())
+                clusterShards.add(shard.trim());
+        }
+        clusterBinaryPorts = new ArrayList<>();
+        for (String port : properties.getProperty("cluster.binary_ports", "").split(",")) {
+            if (!port.trim().isEmpty())
+                clusterBinaryPorts.add(Integer.parseInt(port.trim()));
+        }
+        if (clientProtocol.equals("binary") && !clusterShards.isEmpty()
+                && clusterBinaryPorts.size() != clusterShards.size())
+            throw new IllegalArgumentException("cluster.binary_ports must list a binary port for each of "
+                    + clusterShards.size() + " cluster.shards: " + clusterBinaryPorts);
+        clusterShard = properties.getProperty("cluster.shard", "").trim();
+        clusterVirtualNodes = Integer.parseInt(properties.getProperty("cluster.virtual_nodes", "160"));
+        journalMode = Journal.Mode.valueOf(properties.getProperty("journal.mode", "off").toUpperCase());
+        journalDirectory = properties.getProperty("journal.dir", "journal");
+        journalSegmentSize = Integer.parseInt(properties.getProperty("journal.segment_size", "67108864"));
+        journalFlushInterval = Long.parseLong(properties.getProperty("journal.flush_interval", "10"));
+        if (journalFlushInterval <= 0)
+            throw new IllegalArgumentException("journal.flush_interval must be positive: " + journalFlushInterval);
+        journalCommitDelay = Long.parseLong(properties.getProperty("journal.commit_delay", "0"));
     }
 
     public int getServicePort() {
@@ -70,6 +203,22 @@ public class Config {
         return serviceBindingName;
     }
 
+    public int getServiceBinaryPort() {
+        return serviceBinaryPort;
+    }
+
+    public int getServiceBinaryWorkers() {
+        return serviceBinaryWorkers;
+    }
+
+    public long getServiceLeaseDuration() {
+        return serviceLeaseDuration;
+    }
+
+    public int getServiceQueryChunk() {
+        return serviceQueryChunk;
+    }
+
     public String getJdbcUrl() {
         return jdbcUrl;
     }
@@ -82,6 +231,42 @@ public class Config {
         return jdbcPassword;
     }
 
+    public int getJdbcPoolSize() {
+        return jdbcPoolSize;
+    }
+
+    public long getJdbcPoolTimeout() {
+        return jdbcPoolTimeout;
+    }
+
+    public int getJdbcValidationTimeout() {
+        return jdbcValidationTimeout;
+    }
+
+    public int getJdbcExecutorThreads() {
+        return jdbcExecutorThreads;
+    }
+
+    public int getJdbcExecutorQueue() {
+        return jdbcExecutorQueue;
+    }
+
+    public long getJdbcExecutorTimeout() {
+        return jdbcExecutorTimeout;
+    }
+
+    public DBConnection.FlushMode getJdbcFlushMode() {
+        return jdbcFlushMode;
+    }
+
+    public int getJdbcFlushChunk() {
+        return jdbcFlushChunk;
+    }
+
+    public int getJdbcFlushThreads() {
+        return jdbcFlushThreads;
+    }
+
     public int getClientRCount() {
         return clientRCount;
     }
@@ -93,4 +278,152 @@ public class Config {
     public Identifiers getClientRange() {
         return clientRange;
     }
-}
+
+    public String getClientProtocol() {
+        return clientProtocol;
+    }
+
+    public String getClientMode() {
+        return clientMode;
+    }
+
+    public double getClientBenchRate() {
+        return clientBenchRate;
+    }
+
+    public double getClientBenchReadRatio() {
+        return clientBenchReadRatio;
+    }
+
+    public int getClientBenchThreads() {
+        return clientBenchThreads;
+    }
+
+    public long getClientBenchWarmup() {
+        return clientBenchWarmup;
+    }
+
+    public long getClientBenchDuration() {
+        return clientBenchDuration;
+    }
+
+    public String getClientBenchReport() {
+        return clientBenchReport;
+    }
+
+    public long getClientNearCacheStaleness() {
+        return clientNearCacheStaleness;
+    }
+
+    public int getClientNearCacheSize() {
+        return clientNearCacheSize;
+    }
+
+    public int getCacheCapacity() {
+        return cacheCapacity;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public int getFlushDirtyLimit() {
+        return flushDirtyLimit;
+    }
+
+    public double getFlushMemoryRatio() {
+        return flushMemoryRatio;
+    }
+
+    public AccountTable.Storage getCacheStorage() {
+        return cacheStorage;
+    }
+
+    public CacheWarmer.Mode getWarmupMode() {
+        return warmupMode;
+    }
+
+    public int getWarmupLimit() {
+        return warmupLimit;
+    }
+
+    public int getWarmupPartitions() {
+        return warmupPartitions;
+    }
+
+    public int getWarmupFetchSize() {
+        return warmupFetchSize;
+    }
+
+    public boolean isWarmupBlocking() {
+        return warmupBlocking;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public boolean isDeltaFlush() {
+        return deltaFlush;
+    }
+
+    public int getHotThreshold() {
+        return hotThreshold;
+    }
+
+    public int getHotAccounts() {
+        return hotAccounts;
+    }
+
+    public long getStatLogInterval() {
+        return statLogInterval;
+    }
+
+    public int getStatHotKeys() {
+        return statHotKeys;
+    }
+
+    public long getStatHotKeysHalfLife() {
+        return statHotKeysHalfLife;
+    }
+
+    public List<String> getClusterShards() {
+        return clusterShards;
+    }
+
+    public List<Integer> getClusterBinaryPorts() {
+        return clusterBinaryPorts;
+    }
+
+    public String getClusterShard() {
+        return clusterShard;
+    }
+
+    public int getClusterVirtualNodes() {
+        return clusterVirtualNodes;
+    }
+
+    public Journal.Mode getJournalMode() {
+        return journalMode;
+    }
+
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public int getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    public long getJournalFlushInterval() {
+        return journalFlushInterval;
+    }
+
+    public long getJournalCommitDelay() {
+        return journalCommitDelay;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of (id, balance) pairs kept in primitive arrays.
+ */
+public class AccountBatch {
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private int[] ids;
+    private long[] values;
+    private int size;
+
+    public AccountBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity initial capacity of the batch
+     */
+    public AccountBatch(int capacity) {
+        ids = new int[Math.max(capacity, 1)];
+        values = new long[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Appends a pair to the end of the batch.
+     *
+     * @param id    identifier of an account
+     * @param value balance of an account
+     */
+    public void add(int id, long value) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        ids[size] = id;
+        values[size] = value;
+        size++;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public long getValue(int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Sorts pairs in ascending order of identifiers.
+     */
+    public void sortById() {
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++)
+            order[i] = (long) ids[i] << Integer.SIZE | i;
+        Arrays.sort(order);
+        int[] sortedIds = new int[ids.length];
+        long[] sortedValues = new long[values.length];
+        for (int i = 0; i < size; i++) {
+            sortedIds[i] = (int) (order[i] >> Integer.SIZE);
+            sortedValues[i] = values[(int) order[i]];
+        }
+        ids = sortedIds;
+        values = sortedValues;
+    }
+
+    /**
+     * Removes pairs after the first <code>size</code> ones.
+     *
+     * @param size amount of pairs to keep
+     */
+    public void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    /**
+     * Removes all pairs keeping allocated arrays.
+     */
+    public void clear() {
+        size = 0;
+    }
+}
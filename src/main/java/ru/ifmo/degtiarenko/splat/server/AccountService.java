@@ -19,4 +19,20 @@ public interface AccountService extends Remote {
      * @param value positive or negative value, which must be added to current balance
      */
     void addAmount(Integer id, Long value) throws RemoteException, SQLException;
+
+    /**
+     * Retrieves current balances of several accounts by one call
+     *
+     * @param ids balance identifiers
+     * @return balances in the same order as <code>ids</code>
+     */
+    long[] getAmounts(int[] ids) throws RemoteException, SQLException;
+
+    /**
+     * Increases several balances by one call. Every single change is atomic, the whole batch is not
+     *
+     * @param ids    balance identifiers
+     * @param values positive or negative values, which must be added to balances with the same index in <code>ids</code>
+     */
+    void addAmounts(int[] ids, long[] values) throws RemoteException, SQLException;
 }
\ No newline at end of file
@@ -0,0 +1,1044 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Bounded concurrent hash table of account balances keyed by primitive <code>int</code> identifiers.
+ * <p>
+ * The table is split into segments, every segment is an open-addressing table with linear probing
+ * stored in primitive columns and guarded by its own <code>StampedLock</code>. Reads are optimistic and
+ * do not block writers, writes lock only one segment. Columns are kept in heap arrays or, to keep
+ * the heap small for a huge amount of accounts, in direct buffers, see {@link Storage}. Every entry also carries a dirty flag which is set
+ * by {@link #addAndGet(int, long, AccountLoader)} and cleared by {@link #drainDirty(AccountBatch)}.
+ * <p>
+ * When a segment is full, a clean entry is evicted by the CLOCK algorithm with a small access frequency
+ * counter per entry, so frequently used accounts survive scans over cold ones. Dirty entries and entries
+ * being flushed are never evicted: the segment temporarily grows over its limit instead, and the excess
+ * is evicted by {@link #evictExcess()} after the flush.
+ * <p>
+ * Loading of absent entries is single-flight: concurrent misses for the same id wait for one load,
+ * and the loaded value is inserted before other threads are released. The entry may still be cached by
+ * another path while the load runs, e.g. by a load which finished just before this one started, and then
+ * be changed, flushed and evicted before the loaded value is inserted. To never insert such a stale value,
+ * evictions are counted in stripes of identifiers: a load reads the counter of its id before querying the
+ * database and drops the result if the counter moved, so the next attempt queries the database again.
+ * <p>
+ * Accounts whose segment lock is contended by writers may be switched to striped counters, see
+ * {@link #enableHotAccounts(int, int)}. Such accounts are never evicted, their additions do not lock
+ * the segment, and they are marked dirty only when the stripes are folded by {@link #drainDirty(AccountBatch)}.
+ * <p>
+ * A table which tracks deltas also keeps the sum of changes of every entry since its last flush,
+ * so that several processes can add to balances of the same database, see {@link #isTrackingDeltas()}.
+ */
+public class AccountTable {
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int EVICTION_STRIPES = 4096;
+    static final byte MAX_FREQUENCY = 3;
+
+    static final byte USED = 1;
+    private static final byte DIRTY = 2;
+    private static final byte FLUSHING = 4;
+    private static final byte HOT = 8;
+
+    private final Segment[] segments;
+    private final int segmentMaxSize;
+    private final boolean trackDeltas;
+    private final Storage storage;
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+    private final LongAdder evictionCount;
+    private final LongAdder coalescedCount;
+    private final LongAdder lockWaitNanos;
+    private final LongAdder lockWaitCount;
+    private final ConcurrentMap<Integer, CompletableFuture<Void>> loading;
+    private final AtomicLongArray evictionStamps;
+    private volatile int segmentDirtyLimit;
+    private volatile Runnable dirtyLimitListener;
+    private volatile UpdateListener updateListener;
+    private volatile HotAccounts hotAccounts;
+
+    /**
+     * Memory which keeps entries of the table.
+     */
+    public enum Storage {
+        /**
+         * Primitive arrays in the heap.
+         */
+        HEAP,
+        /**
+         * Direct buffers outside of the heap, limited by <code>-XX:MaxDirectMemorySize</code>. Every entry
+         * takes 14 bytes, or 22 if the table tracks deltas, divided by the load factor of 0.375 to 0.75.
+         */
+        DIRECT
+    }
+
+    /**
+     * Loads balance of an account which is absent in the table.
+     */
+    @FunctionalInterface
+    public interface AccountLoader {
+        long load(int id) throws SQLException;
+    }
+
+    /**
+     * Loads balances of several accounts which are absent in the table.
+     */
+    @FunctionalInterface
+    public interface AccountBatchLoader {
+        /**
+         * @param ids identifiers of accounts, without duplicates
+         * @return balances in the same order
+         */
+        long[] load(int[] ids) throws SQLException;
+    }
+
+    /**
+     * Observes changes of balances, for example to write them to a journal.
+     */
+    @FunctionalInterface
+    public interface UpdateListener {
+        /**
+         * Called under the lock of the entry before the change is applied, so calls for one account
+         * are in the order of changes. If the listener throws, the change is not applied.
+         *
+         * @param id      identifier of an account
+         * @param delta   value added to the balance
+         * @param balance new balance
+         */
+        void onUpdate(int id, long delta, long balance);
+    }
+
+    /**
+     * @param capacity maximal amount of clean accounts in the table
+     */
+    public AccountTable(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity    maximal amount of clean accounts in the table
+     * @param trackDeltas whether to drain changes since the last flush instead of balances
+     */
+    public AccountTable(int capacity, boolean trackDeltas) {
+        this(capacity, trackDeltas, Storage.HEAP);
+    }
+
+    /**
+     * @param capacity    maximal amount of clean accounts in the table
+     * @param trackDeltas whether to drain changes since the last flush instead of balances
+     * @param storage     where to keep entries
+     */
+    public AccountTable(int capacity, boolean trackDeltas, Storage storage) {
+        this.trackDeltas = trackDeltas;
+        this.storage = storage;
+        segments = new Segment[SEGMENT_COUNT];
+        segmentMaxSize = Math.max(capacity / SEGMENT_COUNT, 1);
+        for (int i = 0; i < SEGMENT_COUNT; i++)
+            segments[i] = new Segment(MIN_SEGMENT_CAPACITY);
+        hitCount = new LongAdder();
+        missCount = new LongAdder();
+        evictionCount = new LongAdder();
+        coalescedCount = new LongAdder();
+        lockWaitNanos = new LongAdder();
+        lockWaitCount = new LongAdder();
+        loading = new ConcurrentHashMap<>();
+        evictionStamps = new AtomicLongArray(EVICTION_STRIPES);
+        segmentDirtyLimit = Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return true if {@link #drainDirty(AccountBatch)} drains sums of changes since the previous flush
+     * instead of balances, and {@link #refresh(AccountBatch)} must be called with balances written
+     */
+    public boolean isTrackingDeltas() {
+        return trackDeltas;
+    }
+
+    /**
+     * Sets the listener which is called by a writer when amount of dirty entries in one segment
+     * reaches <code>limit / segments</code> or when a segment cannot evict anything because all its
+     * entries are dirty.
+     *
+     * @param limit    total amount of dirty entries
+     * @param listener listener to call, must not block
+     */
+    public void setDirtyLimit(int limit, Runnable listener) {
+        dirtyLimitListener = listener;
+        segmentDirtyLimit = Math.max(limit / SEGMENT_COUNT, 1);
+    }
+
+    /**
+     * Sets the listener of changes made by {@link #addAndGet(int, long, AccountLoader)} and
+     * {@link #addAll(int[], long[], AccountLoader, AccountBatchLoader)}.
+     *
+     * @param listener listener to call, <code>null</code> to remove
+     */
+    public void setUpdateListener(UpdateListener listener) {
+        updateListener = listener;
+    }
+
+    /**
+     * Enables striped counters for accounts whose segment lock is contended by writers. Accounts are
+     * switched back when they get fewer additions than <code>threshold</code> between two flushes.
+     * Accounts are never switched while an update listener is set, because additions to stripes
+     * bypass the listener.
+     *
+     * @param threshold contended lock acquisitions between two flushes which make an account hot
+     * @param maxCount  maximal amount of hot accounts
+     */
+    public void enableHotAccounts(int threshold, int maxCount) {
+        if (hotAccounts == null)
+            hotAccounts = new HotAccounts(threshold, maxCount);
+    }
+
+    /**
+     * Gets balance of the account, loading it with <code>loader</code> if it is absent.
+     *
+     * @param id     identifier of an account
+     * @param loader loader of absent balances
+     * @return account's balance
+     * @throws SQLException if loader failed
+     */
+    public long getOrLoad(int id, AccountLoader loader) throws SQLException {
+        return getOrLoad(id, loader, true);
+    }
+
+    /**
+     * Gets balances of several accounts. All absent balances are loaded by one call of
+     * <code>batchLoader</code>; <code>loader</code> is used only for entries evicted before they were read.
+     *
+     * @param ids         identifiers of accounts
+     * @param loader      loader of single absent balances
+     * @param batchLoader loader of several absent balances
+     * @return balances in the same order as <code>ids</code>
+     * @throws SQLException if loader failed
+     */
+    public long[] getOrLoadAll(int[] ids, AccountLoader loader, AccountBatchLoader batchLoader) throws SQLException {
+        long[] values = new long[ids.length];
+        int[] missing = new int[ids.length];
+        int missingCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            int index = find(ids[i], values, i);
+            if (index < 0)
+                missing[missingCount++] = i;
+        }
+        hitCount.add(ids.length - missingCount);
+        missCount.add(missingCount);
+        if (missingCount == 0)
+            return values;
+        loadAll(ids, missing, missingCount, batchLoader);
+        for (int i = 0; i < missingCount; i++)
+            values[missing[i]] = getOrLoad(ids[missing[i]], loader, false);
+        return values;
+    }
+
+    private long getOrLoad(int id, AccountLoader loader, boolean countStatistics) throws SQLException {
+        int hash = hash(id);
+        Segment segment = segmentFor(hash);
+        boolean loaded = !countStatistics;
+        while (true) {
+            long stamp = segment.tryOptimisticRead();
+            Slots slots = segment.slots;
+            int index = slots.indexOf(id, hash);
+            long value = index < 0 ? 0 : slots.value(index) + hotSum(id, hash, slots.flags(index));
+            if (!segment.validate(stamp)) {
+                stamp = segment.readLock();
+                try {
+                    slots = segment.slots;
+                    index = slots.indexOf(id, hash);
+                    value = index < 0 ? 0 : slots.value(index) + hotSum(id, hash, slots.flags(index));
+                } finally {
+                    segment.unlockRead(stamp);
+                }
+            }
+            if (index >= 0) {
+                slots.touch(index);
+                if (!loaded)
+                    hitCount.increment();
+                return value;
+            }
+            if (!loaded)
+                missCount.increment();
+            load(id, hash, segment, loader);
+            loaded = true;
+        }
+    }
+
+    /**
+     * Atomically adds <code>delta</code> to balance of the account and marks it dirty.
+     * Absent balance is loaded with <code>loader</code> first.
+     *
+     * @param id     identifier of an account
+     * @param delta  value to add
+     * @param loader loader of absent balances
+     * @return new balance; for a hot account it may include additions made concurrently
+     * @throws SQLException if loader failed
+     */
+    public long addAndGet(int id, long delta, AccountLoader loader) throws SQLException {
+        return addAndGet(id, delta, loader, true);
+    }
+
+    /**
+     * Adds <code>deltas</code> to balances of several accounts. Every addition is atomic, but the whole
+     * batch is not. All absent balances are loaded by one call of <code>batchLoader</code>; <code>loader</code>
+     * is used only for entries evicted before they were changed.
+     *
+     * @param ids         identifiers of accounts
+     * @param deltas      values to add, in the same order as <code>ids</code>
+     * @param loader      loader of single absent balances
+     * @param batchLoader loader of several absent balances
+     * @throws SQLException if loader failed
+     */
+    public void addAll(int[] ids, long[] deltas, AccountLoader loader, AccountBatchLoader batchLoader)
+            throws SQLException {
+        int[] missing = new int[ids.length];
+        int missingCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (find(ids[i], null, 0) < 0)
+                missing[missingCount++] = i;
+        }
+        hitCount.add(ids.length - missingCount);
+        missCount.add(missingCount);
+        if (missingCount > 0)
+            loadAll(ids, missing, missingCount, batchLoader);
+        for (int i = 0; i < ids.length; i++)
+            addAndGet(ids[i], deltas[i], loader, false);
+    }
+
+    private long addAndGet(int id, long delta, AccountLoader loader, boolean countStatistics) throws SQLException {
+        int hash = hash(id);
+        Segment segment = segmentFor(hash);
+        HotAccounts hot = hotAccounts;
+        HotAccounts.Cell cell = hot == null ? null : hot.get(id, hash);
+        if (cell != null && cell.add(delta)) {
+            if (countStatistics)
+                hitCount.increment();
+            return getOrLoad(id, loader, false);
+        }
+        long result;
+        boolean limitReached;
+        boolean loaded = !countStatistics;
+        while (true) {
+            long stamp = segment.tryWriteLock();
+            boolean promote = false;
+            if (stamp == 0) {
+                promote = hot != null && updateListener == null && hot.contended(hash);
+                long waitStart = System.nanoTime();
+                stamp = segment.writeLock();
+                lockWaitNanos.add(System.nanoTime() - waitStart);
+                lockWaitCount.increment();
+            }
+            try {
+                int index = segment.slots.indexOf(id, hash);
+                if (index >= 0) {
+                    segment.slots.touch(index);
+                    if (promote)
+                        segment.promote(hot, id, hash, index);
+                    result = segment.add(id, index, delta);
+                    limitReached = segment.dirtyCount == segmentDirtyLimit || segment.size > segmentMaxSize;
+                    break;
+                }
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+            if (!loaded)
+                missCount.increment();
+            load(id, hash, segment, loader);
+            loaded = true;
+        }
+        if (!loaded)
+            hitCount.increment();
+        if (limitReached)
+            notifyDirtyLimit();
+        return result;
+    }
+
+    /**
+     * Looks the entry up without loading it.
+     *
+     * @param values array to store the found balance to, may be <code>null</code>
+     * @return index of the entry in its segment, or -1 if the entry is absent
+     */
+    private int find(int id, long[] values, int position) {
+        int hash = hash(id);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.tryOptimisticRead();
+        Slots slots = segment.slots;
+        int index = slots.indexOf(id, hash);
+        long value = index < 0 ? 0 : slots.value(index) + hotSum(id, hash, slots.flags(index));
+        if (!segment.validate(stamp)) {
+            stamp = segment.readLock();
+            try {
+                slots = segment.slots;
+                index = slots.indexOf(id, hash);
+                value = index < 0 ? 0 : slots.value(index) + hotSum(id, hash, slots.flags(index));
+            } finally {
+                segment.unlockRead(stamp);
+            }
+        }
+        if (index >= 0) {
+            slots.touch(index);
+            if (values != null)
+                values[position] = value;
+        }
+        return index;
+    }
+
+    /**
+     * Copies all dirty entries into <code>batch</code> and marks them as being flushed.
+     * Such entries are not evicted until {@link #finishFlush(AccountBatch)} is called.
+     * A table which tracks deltas copies sums of changes since the previous flush and resets them.
+     *
+     * @param batch batch to append dirty entries to
+     */
+    public void drainDirty(AccountBatch batch) {
+        HotAccounts hot = hotAccounts;
+        if (hot != null)
+            hot.resetContention();
+        for (Segment segment : segments) {
+            if (segment.dirtyCount == 0 && segment.hotCount == 0)
+                continue;
+            long stamp = segment.writeLock();
+            try {
+                if (segment.hotCount > 0)
+                    segment.foldHot(hot);
+                segment.drainDirty(batch);
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Copies all clean entries into <code>batch</code>, so their balances are equal to the database.
+     * Every segment is copied atomically, but the table as a whole is not.
+     *
+     * @param batch batch to append clean entries to
+     */
+    public void copyClean(AccountBatch batch) {
+        for (Segment segment : segments) {
+            long stamp = segment.readLock();
+            try {
+                Slots slots = segment.slots;
+                for (int i = 0; i < slots.capacity; i++) {
+                    if (slots.flags(i) == USED)
+                        batch.add(slots.key(i), slots.value(i));
+                }
+            } finally {
+                segment.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Completes the flush started by {@link #drainDirty(AccountBatch)}: entries from <code>failed</code>
+     * become dirty again, all other drained entries become clean and may be evicted.
+     * A table which tracks deltas adds failed deltas back to changes since the flush.
+     *
+     * @param failed entries which were not written to the database, as they were drained
+     */
+    public void finishFlush(AccountBatch failed) {
+        for (int i = 0; i < failed.size(); i++) {
+            int id = failed.getId(i);
+            int hash = hash(id);
+            Segment segment = segmentFor(hash);
+            long stamp = segment.writeLock();
+            try {
+                int index = segment.slots.indexOf(id, hash);
+                if (index >= 0) {
+                    if (trackDeltas)
+                        segment.slots.setDelta(index, segment.slots.delta(index) + failed.getValue(i));
+                    segment.markDirty(index);
+                }
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+        }
+        for (Segment segment : segments) {
+            if (segment.flushingCount == 0)
+                continue;
+            long stamp = segment.writeLock();
+            try {
+                segment.clearFlushing();
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Replaces cached balances by balances read from the database after a flush of deltas, so changes
+     * made by other processes become visible. Changes made since the flush are kept.
+     *
+     * @param balances balances of flushed accounts in the database
+     */
+    public void refresh(AccountBatch balances) {
+        if (!trackDeltas)
+            throw new IllegalStateException("The table does not track deltas");
+        for (int i = 0; i < balances.size(); i++) {
+            int id = balances.getId(i);
+            int hash = hash(id);
+            Segment segment = segmentFor(hash);
+            long stamp = segment.writeLock();
+            try {
+                int index = segment.slots.indexOf(id, hash);
+                if (index >= 0)
+                    segment.slots.setValue(index, balances.getValue(i) + segment.slots.delta(index));
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Copies cached entries with identifiers from <code>fromId</code> to <code>toId</code> inclusive.
+     * Segments are scanned in parallel by the common fork-join pool, every segment under its read lock,
+     * so the copy of every segment is consistent, but the table as a whole is not.
+     *
+     * @param fromId the smallest identifier to copy
+     * @param toId   the largest identifier to copy
+     * @param limit  maximal amount of entries to copy; entries with the smallest identifiers are kept
+     * @return copied entries in ascending order of identifiers
+     */
+    public AccountBatch snapshot(int fromId, int toId, int limit) {
+        return ForkJoinPool.commonPool().invoke(new SnapshotTask(0, segments.length, fromId, toId, limit));
+    }
+
+    /**
+     * Inserts a balance read from the database in bulk, e.g. while warming the cache up.
+     * The entry is inserted only if it is absent and its segment has free room and has never evicted
+     * anything: an absent id of such a segment was never cached, so the database value is still actual.
+     *
+     * @param id    identifier of an account
+     * @param value balance of an account
+     * @return true if the entry was inserted
+     */
+    public boolean preload(int id, long value) {
+        int hash = hash(id);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.writeLock();
+        try {
+            if (segment.evicted || segment.size >= segmentMaxSize || segment.slots.indexOf(id, hash) >= 0)
+                return false;
+            int index = segment.insertIfAbsent(id, hash, value);
+            segment.slots.setFrequency(index, (byte) 0);
+            return true;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return maximal amount of clean accounts in the table
+     */
+    public long getCapacity() {
+        return (long) segmentMaxSize * SEGMENT_COUNT;
+    }
+
+    /**
+     * Evicts clean entries from segments which grew over their limit while their entries were dirty.
+     */
+    public void evictExcess() {
+        for (Segment segment : segments) {
+            if (segment.size <= segmentMaxSize)
+                continue;
+            long stamp = segment.writeLock();
+            try {
+                while (segment.size > segmentMaxSize && segment.evict())
+                    evictionCount.increment();
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * @return approximate amount of entries in the table
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.size;
+        return size;
+    }
+
+    /**
+     * @return approximate amount of memory outside of the heap taken by entries
+     */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments)
+            bytes += segment.slots.offHeapBytes();
+        return bytes;
+    }
+
+    /**
+     * @return approximate amount of dirty entries in the table
+     */
+    public long dirtyCount() {
+        long count = 0;
+        for (Segment segment : segments)
+            count += segment.dirtyCount;
+        return count;
+    }
+
+    /**
+     * @return amount of accounts switched to striped counters
+     */
+    public int getHotCount() {
+        HotAccounts hot = hotAccounts;
+        return hot == null ? 0 : hot.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return amount of misses which waited for a load started by another thread
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * @return part of requests served without loading, or zero if there were no requests
+     */
+    public double getHitRatio() {
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return total time writers waited for segment locks, in nanoseconds
+     */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    /**
+     * @return amount of segment lock acquisitions by writers which had to wait
+     */
+    public long getLockWaitCount() {
+        return lockWaitCount.sum();
+    }
+
+    /**
+     * Resets hit, miss, eviction and lock wait counters.
+     */
+    public void resetStatistics() {
+        hitCount.reset();
+        missCount.reset();
+        evictionCount.reset();
+        coalescedCount.reset();
+        lockWaitNanos.reset();
+        lockWaitCount.reset();
+    }
+
+    /**
+     * Loads the entry and inserts it into the segment, or waits for the same load started by another thread.
+     * The entry stays absent if an entry of its eviction stripe was evicted during the load.
+     */
+    private void load(int id, int hash, Segment segment, AccountLoader loader) throws SQLException {
+        Integer key = id;
+        CompletableFuture<Void> flight = new CompletableFuture<>();
+        CompletableFuture<Void> existing = loading.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalescedCount.increment();
+            await(id, existing);
+            return;
+        }
+        boolean overflow = false;
+        try {
+            long evictions = evictionStamps.get(evictionStripe(hash));
+            long value = loader.load(id);
+            long stamp = segment.writeLock();
+            try {
+                if (evictionStamps.get(evictionStripe(hash)) == evictions) {
+                    segment.insertIfAbsent(id, hash, value);
+                    overflow = segment.size > segmentMaxSize;
+                }
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+            flight.complete(null);
+        } catch (SQLException | RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, flight);
+        }
+        if (overflow)
+            notifyDirtyLimit();
+    }
+
+    /**
+     * Loads entries <code>ids[positions[0..count)]</code> by one call of <code>batchLoader</code>.
+     * Entries which are already being loaded by other threads are awaited instead. As in
+     * {@link #load(int, int, Segment, AccountLoader)}, entries whose eviction stripe moved stay absent.
+     */
+    private void loadAll(int[] ids, int[] positions, int count, AccountBatchLoader batchLoader) throws SQLException {
+        List<CompletableFuture<Void>> foreign = new ArrayList<>();
+        int[] foreignIds = new int[count];
+        int[] owned = new int[count];
+        List<CompletableFuture<Void>> flights = new ArrayList<>(count);
+        int ownedCount = 0;
+        for (int i = 0; i < count; i++) {
+            int id = ids[positions[i]];
+            CompletableFuture<Void> flight = new CompletableFuture<>();
+            CompletableFuture<Void> existing = loading.putIfAbsent(id, flight);
+            if (existing == null) {
+                owned[ownedCount++] = id;
+                flights.add(flight);
+            } else {
+                foreignIds[foreign.size()] = id;
+                foreign.add(existing);
+            }
+        }
+        boolean overflow = false;
+        try {
+            long[] evictions = new long[ownedCount];
+            for (int i = 0; i < ownedCount; i++)
+                evictions[i] = evictionStamps.get(evictionStripe(hash(owned[i])));
+            long[] values = batchLoader.load(Arrays.copyOf(owned, ownedCount));
+            for (int i = 0; i < ownedCount; i++) {
+                int hash = hash(owned[i]);
+                Segment segment = segmentFor(hash);
+                long stamp = segment.writeLock();
+                try {
+                    if (evictionStamps.get(evictionStripe(hash)) == evictions[i]) {
+                        segment.insertIfAbsent(owned[i], hash, values[i]);
+                        overflow |= segment.size > segmentMaxSize;
+                    }
+                } finally {
+                    segment.unlockWrite(stamp);
+                }
+                flights.get(i).complete(null);
+            }
+        } catch (SQLException | RuntimeException e) {
+            for (CompletableFuture<Void> flight : flights)
+                flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            for (int i = 0; i < ownedCount; i++)
+                loading.remove(owned[i], flights.get(i));
+        }
+        if (overflow)
+            notifyDirtyLimit();
+        coalescedCount.add(foreign.size());
+        for (int i = 0; i < foreign.size(); i++)
+            await(foreignIds[i], foreign.get(i));
+    }
+
+    private static void await(int id, CompletableFuture<Void> flight) throws SQLException {
+        try {
+            flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading account " + id, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OverloadedException)
+                throw new OverloadedException("Failed to load account " + id + ": " + cause.getMessage());
+            if (cause instanceof SQLException)
+                throw new SQLException("Failed to load account " + id, ((SQLException) cause).getSQLState(), cause);
+            throw new SQLException("Failed to load account " + id, cause);
+        }
+    }
+
+    private void notifyDirtyLimit() {
+        Runnable listener = dirtyLimitListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    private static int evictionStripe(int hash) {
+        return hash & (EVICTION_STRIPES - 1);
+    }
+
+    private long hotSum(int id, int hash, byte flags) {
+        if ((flags & HOT) == 0)
+            return 0;
+        HotAccounts.Cell cell = hotAccounts.get(id, hash);
+        return cell == null ? 0 : cell.sum();
+    }
+
+    static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Copies entries of segments <code>from</code> to <code>to</code> exclusive, splitting the segments in halves
+     * and merging sorted copies of the halves.
+     */
+    private final class SnapshotTask extends RecursiveTask<AccountBatch> {
+        private final int from;
+        private final int to;
+        private final int fromId;
+        private final int toId;
+        private final int limit;
+
+        SnapshotTask(int from, int to, int fromId, int toId, int limit) {
+            this.from = from;
+            this.to = to;
+            this.fromId = fromId;
+            this.toId = toId;
+            this.limit = limit;
+        }
+
+        @Override
+        protected AccountBatch compute() {
+            if (to - from == 1)
+                return copy(segments[from]);
+            int middle = (from + to) >>> 1;
+            SnapshotTask right = new SnapshotTask(middle, to, fromId, toId, limit);
+            right.fork();
+            AccountBatch left = new SnapshotTask(from, middle, fromId, toId, limit).compute();
+            return merge(left, right.join());
+        }
+
+        private AccountBatch copy(Segment segment) {
+            AccountBatch batch = new AccountBatch(0);
+            long stamp = segment.readLock();
+            try {
+                Slots slots = segment.slots;
+                for (int i = 0; i < slots.capacity; i++) {
+                    byte flags = slots.flags(i);
+                    int id = slots.key(i);
+                    if ((flags & USED) != 0 && id >= fromId && id <= toId)
+                        batch.add(id, slots.value(i) + hotSum(id, hash(id), flags));
+                }
+            } finally {
+                segment.unlockRead(stamp);
+            }
+            batch.sortById();
+            batch.truncate(limit);
+            return batch;
+        }
+
+        private AccountBatch merge(AccountBatch left, AccountBatch right) {
+            int size = (int) Math.min((long) left.size() + right.size(), limit);
+            AccountBatch merged = new AccountBatch(size);
+            int i = 0;
+            int j = 0;
+            while (merged.size() < size) {
+                if (j == right.size() || i < left.size() && left.getId(i) < right.getId(j)) {
+                    merged.add(left.getId(i), left.getValue(i));
+                    i++;
+                } else {
+                    merged.add(right.getId(j), right.getValue(j));
+                    j++;
+                }
+            }
+            return merged;
+        }
+    }
+
+    private final class Segment extends StampedLock {
+        volatile Slots slots;
+        int size;
+        int dirtyCount;
+        int flushingCount;
+        int hotCount;
+        int clockHand;
+        boolean evicted;
+
+        Segment(int capacity) {
+            slots = storage == Storage.DIRECT
+                    ? new Slots.Direct(capacity, trackDeltas)
+                    : new Slots.Heap(capacity, trackDeltas);
+        }
+
+        int insertIfAbsent(int id, int hash, long value) {
+            int index = slots.indexOf(id, hash);
+            if (index >= 0)
+                return index;
+            if (size >= segmentMaxSize && evict())
+                evictionCount.increment();
+            if (size + 1 > slots.capacity * LOAD_FACTOR)
+                resize();
+            index = slots.freeIndex(hash);
+            slots.setKey(index, id);
+            slots.setValue(index, value);
+            slots.setFlags(index, USED);
+            slots.setFrequency(index, (byte) 1);
+            if (trackDeltas)
+                slots.setDelta(index, 0);
+            size++;
+            return index;
+        }
+
+        long add(int id, int index, long delta) {
+            long value = slots.value(index) + delta;
+            UpdateListener listener = updateListener;
+            if (listener != null)
+                listener.onUpdate(id, delta, value);
+            slots.setValue(index, value);
+            if (trackDeltas)
+                slots.setDelta(index, slots.delta(index) + delta);
+            markDirty(index);
+            return value;
+        }
+
+        void markDirty(int index) {
+            byte flags = slots.flags(index);
+            if ((flags & DIRTY) == 0) {
+                slots.setFlags(index, (byte) (flags | DIRTY));
+                dirtyCount++;
+            }
+        }
+
+        void promote(HotAccounts hot, int id, int hash, int index) {
+            byte flags = slots.flags(index);
+            if ((flags & HOT) == 0 && hot.promote(id, hash) != null) {
+                slots.setFlags(index, (byte) (flags | HOT));
+                hotCount++;
+            }
+        }
+
+        /**
+         * Adds stripes of hot entries to their balances and switches entries which cooled down back.
+         */
+        void foldHot(HotAccounts hot) {
+            Slots slots = this.slots;
+            for (int i = 0; i < slots.capacity; i++) {
+                if ((slots.flags(i) & HOT) == 0)
+                    continue;
+                int id = slots.key(i);
+                HotAccounts.Cell cell = hot.get(id, hash(id));
+                boolean cold = hot.isCold(cell.drainAdditions());
+                long sum = cell.drain(cold);
+                if (sum != 0) {
+                    slots.setValue(i, slots.value(i) + sum);
+                    if (trackDeltas)
+                        slots.setDelta(i, slots.delta(i) + sum);
+                    markDirty(i);
+                }
+                if (cold) {
+                    hot.demote(id);
+                    slots.setFlags(i, (byte) (slots.flags(i) & ~HOT));
+                    hotCount--;
+                }
+            }
+        }
+
+        void drainDirty(AccountBatch batch) {
+            Slots slots = this.slots;
+            for (int i = 0; i < slots.capacity; i++) {
+                byte flags = slots.flags(i);
+                if ((flags & DIRTY) != 0) {
+                    if (trackDeltas) {
+                        batch.add(slots.key(i), slots.delta(i));
+                        slots.setDelta(i, 0);
+                    } else {
+                        batch.add(slots.key(i), slots.value(i));
+                    }
+                    if ((flags & FLUSHING) == 0)
+                        flushingCount++;
+                    slots.setFlags(i, (byte) ((flags & ~DIRTY) | FLUSHING));
+                }
+            }
+            dirtyCount = 0;
+        }
+
+        void clearFlushing() {
+            Slots slots = this.slots;
+            for (int i = 0; i < slots.capacity; i++)
+                slots.setFlags(i, (byte) (slots.flags(i) & ~FLUSHING));
+            flushingCount = 0;
+        }
+
+        /**
+         * Evicts one clean entry chosen by the CLOCK hand.
+         *
+         * @return false if there is no clean entry to evict
+         */
+        boolean evict() {
+            Slots slots = this.slots;
+            int length = slots.capacity;
+            for (int step = 0; step <= length * (MAX_FREQUENCY + 1); step++) {
+                int index = clockHand;
+                clockHand = (clockHand + 1) & (length - 1);
+                byte flags = slots.flags(index);
+                if ((flags & USED) == 0 || (flags & (DIRTY | FLUSHING | HOT)) != 0)
+                    continue;
+                byte frequency = slots.frequency(index);
+                if (frequency > 0) {
+                    slots.setFrequency(index, (byte) (frequency - 1));
+                    continue;
+                }
+                evictionStamps.incrementAndGet(evictionStripe(hash(slots.key(index))));
+                remove(index);
+                evicted = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Removes the entry and shifts following entries of the probe sequence back,
+         * so lookups never need tombstones.
+         */
+        private void remove(int index) {
+            int mask = slots.capacity - 1;
+            int hole = index;
+            int next = hole;
+            while (true) {
+                next = (next + 1) & mask;
+                if ((slots.flags(next) & USED) == 0)
+                    break;
+                int home = hash(slots.key(next)) & mask;
+                boolean movable = hole <= next
+                        ? home <= hole || home > next
+                        : home <= hole && home > next;
+                if (movable) {
+                    slots.copy(slots, next, hole);
+                    hole = next;
+                }
+            }
+            slots.setFlags(hole, (byte) 0);
+            slots.setFrequency(hole, (byte) 0);
+            size--;
+        }
+
+        private void resize() {
+            Slots old = slots;
+            Slots resized = old.create(old.capacity * 2);
+            for (int i = 0; i < old.capacity; i++) {
+                if ((old.flags(i) & USED) != 0)
+                    resized.copy(old, i, resized.freeIndex(hash(old.key(i))));
+            }
+            clockHand = 0;
+            slots = resized;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.io.Serializable;
+
+/**
+ * Balance with the time it may be cached for.
+ */
+public class AmountLease implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long amount;
+    private final long duration;
+
+    /**
+     * @param amount   balance of an account
+     * @param duration lease in milliseconds counted from the moment the request was sent
+     */
+    public AmountLease(long amount, long duration) {
+        this.amount = amount;
+        this.duration = duration;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+}
@@ -0,0 +1,48 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.io.Serializable;
+
+/**
+ * Part of the result of a range query: balances with their identifiers and the identifier to continue from.
+ */
+public class BalanceChunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] ids;
+    private final long[] amounts;
+    private final boolean more;
+    private final int next;
+
+    /**
+     * @param ids     identifiers of accounts
+     * @param amounts balances in the same order as <code>ids</code>
+     * @param more    whether the range has more accounts after this chunk
+     * @param next    identifier to request the next chunk from, if there are more accounts
+     */
+    public BalanceChunk(int[] ids, long[] amounts, boolean more, int next) {
+        this.ids = ids;
+        this.amounts = amounts;
+        this.more = more;
+        this.next = next;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public long getAmount(int index) {
+        return amounts[index];
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+
+    public int getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,139 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.IntPredicate;
+
+/**
+ * Answers {@link BalanceQueryService} queries from a snapshot of the cache and one range scan of the database.
+ * <p>
+ * Both the snapshot and rows of the scan are in ascending order of identifiers, so they are merged in one
+ * pass. A cached balance replaces the balance of the same account in the database, because it may include
+ * changes not flushed yet.
+ */
+final class BalanceQueries {
+    private final AccountTable cache;
+    private final DBConnection dbConnection;
+    private final IntPredicate owned;
+    private final int chunkSize;
+
+    /**
+     * @param cache        cache of the service
+     * @param dbConnection connection to scan accounts which are not cached
+     * @param owned        whether an account belongs to the service
+     * @param chunkSize    the largest amount of accounts returned by one call
+     */
+    BalanceQueries(AccountTable cache, DBConnection dbConnection, IntPredicate owned, int chunkSize) {
+        this.cache = cache;
+        this.dbConnection = dbConnection;
+        this.owned = owned;
+        this.chunkSize = chunkSize;
+    }
+
+    long sum(int fromId, int toId) throws SQLException {
+        long[] sum = new long[1];
+        scan(fromId, toId, cache.snapshot(fromId, toId, Integer.MAX_VALUE), chunkSize, (id, amount) -> {
+            sum[0] = Math.addExact(sum[0], amount);
+            return true;
+        });
+        return sum[0];
+    }
+
+    BalanceChunk list(int fromId, int toId, int maxSize) throws SQLException {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        int size = Math.min(maxSize, chunkSize);
+        AccountBatch balances = new AccountBatch(size);
+        scan(fromId, toId, cache.snapshot(fromId, toId, size), size, (id, amount) -> {
+            balances.add(id, amount);
+            return balances.size() < size;
+        });
+        int last = balances.isEmpty() ? toId : balances.getId(balances.size() - 1);
+        boolean more = balances.size() == size && last < toId;
+        return toChunk(balances, more, more ? last + 1 : 0);
+    }
+
+    BalanceChunk top(int fromId, int toId, int count) throws SQLException {
+        if (count <= 0 || count > chunkSize)
+            throw new IllegalArgumentException("Amount of accounts must be from 1 to " + chunkSize);
+        Comparator<long[]> worstFirst = Comparator.<long[]>comparingLong(entry -> entry[1])
+                .thenComparing(Comparator.<long[]>comparingLong(entry -> entry[0]).reversed());
+        PriorityQueue<long[]> top = new PriorityQueue<>(count + 1, worstFirst);
+        scan(fromId, toId, cache.snapshot(fromId, toId, Integer.MAX_VALUE), chunkSize, (id, amount) -> {
+            top.add(new long[]{id, amount});
+            if (top.size() > count)
+                top.poll();
+            return true;
+        });
+        int size = top.size();
+        AccountBatch balances = new AccountBatch(size);
+        long[][] best = new long[size][];
+        for (int i = size - 1; i >= 0; i--)
+            best[i] = top.poll();
+        for (long[] entry : best)
+            balances.add((int) entry[0], entry[1]);
+        return toChunk(balances, false, 0);
+    }
+
+    /**
+     * Passes balances of accounts from the range to <code>consumer</code> in ascending order of identifiers
+     * until it returns false.
+     */
+    private void scan(int fromId, int toId, AccountBatch cached, int fetchSize, DBConnection.AccountConsumer consumer)
+            throws SQLException {
+        Merge merge = new Merge(cached, consumer);
+        dbConnection.scanAccounts(fromId, toId, fetchSize, merge);
+        merge.finish();
+    }
+
+    private static BalanceChunk toChunk(AccountBatch balances, boolean more, int next) {
+        int[] ids = new int[balances.size()];
+        long[] amounts = new long[balances.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = balances.getId(i);
+            amounts[i] = balances.getValue(i);
+        }
+        return new BalanceChunk(ids, amounts, more, next);
+    }
+
+    /**
+     * Merges rows of the database with the snapshot of the cache.
+     */
+    private final class Merge implements DBConnection.AccountConsumer {
+        private final AccountBatch cached;
+        private final DBConnection.AccountConsumer consumer;
+        private int position;
+        private boolean stopped;
+
+        Merge(AccountBatch cached, DBConnection.AccountConsumer consumer) {
+            this.cached = cached;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public boolean accept(int id, long amount) {
+            while (position < cached.size() && cached.getId(position) < id) {
+                if (!emit(cached.getId(position), cached.getValue(position++)))
+                    return false;
+            }
+            if (position < cached.size() && cached.getId(position) == id)
+                return emit(id, cached.getValue(position++));
+            return emit(id, amount);
+        }
+
+        /**
+         * Emits cached accounts after the last row of the database.
+         */
+        void finish() {
+            while (!stopped && position < cached.size())
+                emit(cached.getId(position), cached.getValue(position++));
+        }
+
+        private boolean emit(int id, long amount) {
+            if (owned.test(id) && !consumer.accept(id, amount))
+                stopped = true;
+            return !stopped;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+
+/**
+ * Aggregate and range queries over balances, for reconciliation jobs. Cached balances are taken from
+ * the cache of the service, all other ones are read by one range query to the database, so the result
+ * includes changes not flushed yet. A result is consistent per account, not as a whole.
+ * <p>
+ * In a cluster every shard answers for its own accounts only.
+ */
+public interface BalanceQueryService extends Remote {
+    /**
+     * Retrieves the sum of balances of accounts with identifiers from <code>fromId</code> to <code>toId</code>
+     * inclusive.
+     *
+     * @throws ArithmeticException if the sum overflows <code>long</code>
+     */
+    long sumAmounts(int fromId, int toId) throws RemoteException, SQLException;
+
+    /**
+     * Retrieves balances of accounts with identifiers from <code>fromId</code> to <code>toId</code> inclusive
+     * in ascending order of identifiers. Large ranges are returned in chunks: while the chunk has more,
+     * the next one is requested from {@link BalanceChunk#getNext()}.
+     *
+     * @param maxSize the largest acceptable chunk; the service may return less
+     */
+    BalanceChunk getBalances(int fromId, int toId, int maxSize) throws RemoteException, SQLException;
+
+    /**
+     * Retrieves accounts with the largest balances among identifiers from <code>fromId</code> to
+     * <code>toId</code> inclusive, the largest first, equal balances in ascending order of identifiers.
+     *
+     * @param count amount of accounts, not more than the chunk size of the service
+     */
+    BalanceChunk getTopBalances(int fromId, int toId, int count) throws RemoteException, SQLException;
+}
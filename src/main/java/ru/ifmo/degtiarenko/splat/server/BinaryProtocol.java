@@ -0,0 +1,52 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size binary frames of the pipelined <code>AccountService</code> protocol.
+ * <p>
+ * Request: <code>int requestId, byte operation, int accountId, long value</code>, 17 bytes.<br>
+ * Response: <code>int requestId, byte status, long value</code>, 13 bytes.
+ * <p>
+ * All numbers are big-endian. A client may send many requests without waiting for responses;
+ * responses can arrive in any order and are matched to requests by <code>requestId</code>.
+ */
+public final class BinaryProtocol {
+    public static final int REQUEST_SIZE = 17;
+    public static final int RESPONSE_SIZE = 13;
+
+    /**
+     * Operation of {@link AccountService#getAmount(Integer)}, value of the request is ignored,
+     * value of the response is the balance.
+     */
+    public static final byte GET_AMOUNT = 1;
+    /**
+     * Operation of {@link AccountService#addAmount(Integer, Long)}, value of the request is added to the balance,
+     * value of the response is zero.
+     */
+    public static final byte ADD_AMOUNT = 2;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_SQL_ERROR = 1;
+    public static final byte STATUS_FAILURE = 2;
+    /**
+     * The account belongs to another shard, see {@link WrongShardException}.
+     */
+    public static final byte STATUS_WRONG_SHARD = 3;
+
+    private BinaryProtocol() {
+    }
+
+    public static void putRequest(ByteBuffer buffer, int requestId, byte operation, int accountId, long value) {
+        buffer.putInt(requestId);
+        buffer.put(operation);
+        buffer.putInt(accountId);
+        buffer.putLong(value);
+    }
+
+    public static void putResponse(ByteBuffer buffer, int requestId, byte status, long value) {
+        buffer.putInt(requestId);
+        buffer.put(status);
+        buffer.putLong(value);
+    }
+}
@@ -0,0 +1,262 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking endpoint of {@link BinaryProtocol} in front of an <code>AccountService</code>.
+ * <p>
+ * One selector thread accepts connections, parses request frames and writes response frames.
+ * Requests are executed by a pool of worker threads, because a cache miss blocks on the database.
+ * A connection may have up to {@link #MAX_IN_FLIGHT} requests in flight; after that it is not read
+ * until half of them are answered.
+ */
+public class BinaryServer implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(BinaryServer.class.getName());
+    private static final int MAX_IN_FLIGHT = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AccountService service;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Queue<Connection> pendingWrites;
+    private final Thread selectorThread;
+    private volatile boolean closed;
+
+    /**
+     * Starts listening on the port.
+     *
+     * @param service     service to execute requests with
+     * @param port        port to listen on, 0 for any free port
+     * @param workerCount amount of worker threads
+     * @throws IOException if failed to open the port
+     */
+    public BinaryServer(AccountService service, int port, int workerCount) throws IOException {
+        this.service = service;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread thread = new Thread(r, "binary-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pendingWrites = new ConcurrentLinkedQueue<>();
+        selectorThread = new Thread(this::run, "binary-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting requests and closes all connections.
+     */
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    pending.writeScheduled.set(false);
+                    if (pending.key.isValid()) {
+                        try {
+                            write(pending);
+                        } catch (IOException e) {
+                            close(pending.key, e);
+                        }
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isValid() && key.isAcceptable())
+                            accept();
+                        if (key.isValid() && key.isReadable())
+                            read((Connection) key.attachment());
+                        if (key.isValid() && key.isWritable())
+                            write((Connection) key.attachment());
+                    } catch (IOException e) {
+                        close(key, e);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed)
+                LOGGER.log(Level.SEVERE, "Binary protocol endpoint failed", e);
+        }
+    }
+
+    /**
+     * Closes a failed connection. A failure to close is only logged, so it never stops the selector thread.
+     */
+    private static void close(SelectionKey key, IOException cause) {
+        LOGGER.log(Level.FINE, "Closing binary protocol connection", cause);
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close binary protocol connection", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.in) < 0)
+            throw new IOException("Connection closed by client");
+        dispatch(connection);
+    }
+
+    private void dispatch(Connection connection) {
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= BinaryProtocol.REQUEST_SIZE && connection.inFlight.get() < MAX_IN_FLIGHT) {
+            int requestId = in.getInt();
+            byte operation = in.get();
+            int accountId = in.getInt();
+            long value = in.getLong();
+            connection.inFlight.incrementAndGet();
+            workers.execute(() -> execute(connection, requestId, operation, accountId, value));
+        }
+        in.compact();
+        if (connection.inFlight.get() >= MAX_IN_FLIGHT)
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void execute(Connection connection, int requestId, byte operation, int accountId, long value) {
+        byte status = BinaryProtocol.STATUS_OK;
+        long result = 0;
+        try {
+            if (operation == BinaryProtocol.GET_AMOUNT)
+                result = service.getAmount(accountId);
+            else if (operation == BinaryProtocol.ADD_AMOUNT)
+                service.addAmount(accountId, value);
+            else
+                status = BinaryProtocol.STATUS_FAILURE;
+        } catch (SQLException e) {
+            status = BinaryProtocol.STATUS_SQL_ERROR;
+        } catch (WrongShardException e) {
+            status = BinaryProtocol.STATUS_WRONG_SHARD;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to execute binary protocol request", e);
+            status = BinaryProtocol.STATUS_FAILURE;
+        }
+        connection.responses.add(new Response(requestId, status, result));
+        if (connection.writeScheduled.compareAndSet(false, true)) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    private void write(Connection connection) throws IOException {
+        ByteBuffer out = connection.out;
+        Response response;
+        int answered = 0;
+        while (out.remaining() >= BinaryProtocol.RESPONSE_SIZE && (response = connection.responses.poll()) != null) {
+            BinaryProtocol.putResponse(out, response.requestId, response.status, response.value);
+            answered++;
+        }
+        out.flip();
+        connection.channel.write(out);
+        out.compact();
+
+        SelectionKey key = connection.key;
+        boolean hasMore = out.position() > 0 || !connection.responses.isEmpty();
+        int interest = hasMore ? key.interestOps() | SelectionKey.OP_WRITE : key.interestOps() & ~SelectionKey.OP_WRITE;
+        if (answered > 0 && connection.inFlight.addAndGet(-answered) <= MAX_IN_FLIGHT / 2
+                && (interest & SelectionKey.OP_READ) == 0) {
+            interest |= SelectionKey.OP_READ;
+            key.interestOps(interest);
+            dispatch(connection);
+            return;
+        }
+        key.interestOps(interest);
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in;
+        final ByteBuffer out;
+        final Queue<Response> responses;
+        final AtomicInteger inFlight;
+        final AtomicBoolean writeScheduled;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            responses = new ConcurrentLinkedQueue<>();
+            inFlight = new AtomicInteger();
+            writeScheduled = new AtomicBoolean();
+        }
+    }
+
+    private static final class Response {
+        final int requestId;
+        final byte status;
+        final long value;
+
+        Response(int requestId, byte status, long value) {
+            this.requestId = requestId;
+            this.status = status;
+            this.value = value;
+        }
+    }
+}
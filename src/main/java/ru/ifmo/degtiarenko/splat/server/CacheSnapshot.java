@@ -0,0 +1,221 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of clean cache entries, so a restarted service does not reload the cache from the database.
+ * <p>
+ * Layout: <code>int magic, int version, long mark, int count, int[count] ids, long[count] balances,
+ * long crc32</code>, ids are sorted. The mark is taken from the database by {@link DBConnection#nextChangeMark()}
+ * before the cache is copied: every account changed in the database after it has <code>touched</code> greater
+ * than the mark. On restore the snapshot
+ * is memory-mapped, its checksum is verified, accounts of the snapshot changed after the mark are read
+ * from the database, and the rest is taken from the snapshot.
+ * <p>
+ * Snapshots are written on shutdown and, if configured, periodically.
+ */
+public class CacheSnapshot implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(CacheSnapshot.class.getName());
+    private static final int MAGIC = 0x53504C53;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int CHECKSUM_SIZE = 8;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path file;
+    private final DBConnection dbConnection;
+    private final AccountTable cache;
+    private final int fetchSize;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param config       configuration of snapshots
+     * @param dbConnection connection to take change marks and to validate restored snapshots with
+     * @param cache        cache to write and restore
+     */
+    public CacheSnapshot(Config config, DBConnection dbConnection, AccountTable cache) {
+        this.dbConnection = dbConnection;
+        this.cache = cache;
+        file = Paths.get(config.getSnapshotFile());
+        fetchSize = config.getWarmupFetchSize();
+        long interval = config.getSnapshotInterval();
+        if (interval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::checkpoint, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Fills the cache from the snapshot file.
+     *
+     * @return true if the snapshot was restored, false if it is absent or damaged
+     * @throws SQLException if failed to read accounts changed after the snapshot
+     */
+    public boolean restore() throws SQLException {
+        long startTime = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!isValid(buffer)) {
+                LOGGER.log(Level.WARNING, "Cache snapshot {0} is damaged, ignoring it", file);
+                return false;
+            }
+            long mark = buffer.getLong(8);
+            int count = buffer.getInt(16);
+            int valuesOffset = HEADER_SIZE + count * 4;
+            dbConnection.scanChangedAccounts(mark, fetchSize, (id, amount) -> {
+                if (indexOf(buffer, count, id) >= 0)
+                    cache.preload(id, amount);
+                return true;
+            });
+            for (int i = 0; i < count; i++)
+                cache.preload(buffer.getInt(HEADER_SIZE + i * 4), buffer.getLong(valuesOffset + i * 8));
+            LOGGER.log(Level.INFO, "Cache snapshot restored: {0} accounts in {1} ms",
+                    new Object[]{count, System.currentTimeMillis() - startTime});
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read cache snapshot " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes clean entries of the cache to the snapshot file, replacing it atomically.
+     *
+     * @throws IOException if failed to write the file
+     */
+    public void write() throws IOException {
+        long mark;
+        try {
+            mark = dbConnection.nextChangeMark();
+        } catch (SQLException e) {
+            throw new IOException("Failed to take a change mark for the cache snapshot", e);
+        }
+        AccountBatch batch = new AccountBatch((int) Math.min(cache.size(), Integer.MAX_VALUE - 8));
+        cache.copyClean(batch);
+        int count = batch.size();
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++)
+            order[i] = (long) batch.getId(i) << 32 | i;
+        Arrays.sort(order);
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(mark).putInt(count);
+            for (long entry : order) {
+                if (buffer.remaining() < 4)
+                    drain(channel, buffer, crc);
+                buffer.putInt((int) (entry >> 32));
+            }
+            for (long entry : order) {
+                if (buffer.remaining() < 8)
+                    drain(channel, buffer, crc);
+                buffer.putLong(batch.getValue((int) entry));
+            }
+            drain(channel, buffer, crc);
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.log(Level.FINE, "Cache snapshot written: {0} accounts", count);
+    }
+
+    /**
+     * Stops periodic snapshots and writes the final one.
+     *
+     * @throws IOException if failed to write the snapshot
+     */
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        write();
+    }
+
+    private void checkpoint() {
+        try {
+            write();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write cache snapshot", e);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static boolean isValid(MappedByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE + CHECKSUM_SIZE
+                || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            return false;
+        int count = buffer.getInt(16);
+        long size = HEADER_SIZE + count * 12L + CHECKSUM_SIZE;
+        if (count < 0 || buffer.limit() != size)
+            return false;
+        ByteBuffer content = buffer.duplicate();
+        content.position(0).limit((int) size - CHECKSUM_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue() == buffer.getLong((int) size - CHECKSUM_SIZE);
+    }
+
+    /**
+     * Binary search over the sorted ids of the snapshot.
+     */
+    private static int indexOf(ByteBuffer buffer, int count, int id) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = buffer.getInt(HEADER_SIZE + middle * 4);
+            if (value < id)
+                low = middle + 1;
+            else if (value > id)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+}
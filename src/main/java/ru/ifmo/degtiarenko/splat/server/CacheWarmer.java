@@ -0,0 +1,191 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills the cache from the <code>accounts</code> table in bulk.
+ * <p>
+ * In <code>all</code> mode the id range is split into partitions which are read in parallel,
+ * every partition with its own connection and cursor. In <code>recent</code> mode the accounts changed
+ * most recently are read by one cursor. Warm-up stops when the cache is full.
+ */
+public class CacheWarmer {
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmer.class.getName());
+
+    /**
+     * Which accounts are loaded by warm-up.
+     */
+    public enum Mode {
+        NONE, ALL, RECENT
+    }
+
+    private final DBConnection dbConnection;
+    private final AccountTable cache;
+    private final Mode mode;
+    private final int limit;
+    private final int partitions;
+    private final int fetchSize;
+    private final AtomicLong loadedCount;
+    private final AtomicLong skippedCount;
+    private volatile long startTime;
+    private volatile long finishTime;
+    private volatile long rangeSize;
+    private volatile AtomicLongArray partitionProgress;
+    private volatile boolean running;
+
+    /**
+     * @param config       configuration of warm-up
+     * @param dbConnection connection to read accounts with
+     * @param cache        cache to fill
+     */
+    public CacheWarmer(Config config, DBConnection dbConnection, AccountTable cache) {
+        this.dbConnection = dbConnection;
+        this.cache = cache;
+        mode = config.getWarmupMode();
+        limit = config.getWarmupLimit() > 0 ? config.getWarmupLimit() : (int) cache.getCapacity();
+        partitions = Math.max(config.getWarmupPartitions(), 1);
+        fetchSize = config.getWarmupFetchSize();
+        loadedCount = new AtomicLong();
+        skippedCount = new AtomicLong();
+        partitionProgress = new AtomicLongArray(0);
+    }
+
+    /**
+     * Loads accounts into the cache. Returns when warm-up is finished.
+     *
+     * @throws SQLException if failed to read accounts
+     */
+    public void run() throws SQLException {
+        if (mode == Mode.NONE)
+            return;
+        running = true;
+        startTime = System.currentTimeMillis();
+        try {
+            if (mode == Mode.ALL)
+                loadAll();
+            else
+                dbConnection.scanRecentAccounts(limit, fetchSize, this::accept);
+        } finally {
+            finishTime = System.currentTimeMillis();
+            running = false;
+        }
+        LOGGER.log(Level.INFO, "Cache warm-up finished: {0} accounts loaded in {1} ms",
+                new Object[]{loadedCount.get(), finishTime - startTime});
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getLoadedCount() {
+        return loadedCount.get();
+    }
+
+    /**
+     * @return amount of read accounts which were already cached or did not fit into the cache
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * @return estimated part of warm-up which is done, from 0 to 1
+     */
+    public double getProgress() {
+        if (mode == Mode.NONE || (!running && finishTime != 0))
+            return 1;
+        if (mode == Mode.RECENT)
+            return Math.min((double) (loadedCount.get() + skippedCount.get()) / limit, 1);
+        AtomicLongArray progress = partitionProgress;
+        if (rangeSize == 0)
+            return 0;
+        long done = 0;
+        for (int i = 0; i < progress.length(); i++)
+            done += progress.get(i);
+        return Math.min((double) done / rangeSize, 1);
+    }
+
+    /**
+     * @return time of warm-up in milliseconds, so far if it is still running
+     */
+    public long getElapsedMillis() {
+        if (startTime == 0)
+            return 0;
+        return (running ? System.currentTimeMillis() : finishTime) - startTime;
+    }
+
+    private void loadAll() throws SQLException {
+        int[] range = dbConnection.getIdRange();
+        if (range == null)
+            return;
+        long from = range[0];
+        long to = range[1];
+        rangeSize = to - from + 1;
+        long step = (rangeSize + partitions - 1) / partitions;
+        partitionProgress = new AtomicLongArray(partitions);
+
+        ExecutorService executor = Executors.newFixedThreadPool(partitions, r -> {
+            Thread thread = new Thread(r, "cache-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                long partitionFrom = from + i * step;
+                long partitionTo = Math.min(partitionFrom + step - 1, to);
+                if (partitionFrom > to)
+                    break;
+                int partition = i;
+                futures.add(executor.submit(() -> {
+                    dbConnection.scanAccounts((int) partitionFrom, (int) partitionTo, fetchSize, (id, amount) -> {
+                        partitionProgress.set(partition, id - partitionFrom + 1);
+                        return accept(id, amount);
+                    });
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures)
+                await(future);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean accept(int id, long amount) {
+        if (cache.preload(id, amount))
+            loadedCount.incrementAndGet();
+        else
+            skippedCount.incrementAndGet();
+        return cache.size() < cache.getCapacity();
+    }
+
+    private static void await(Future<Void> future) throws SQLException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while warming the cache up", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new SQLException("Failed to warm the cache up", e.getCause());
+        }
+    }
+}
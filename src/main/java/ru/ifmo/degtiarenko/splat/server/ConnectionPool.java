@@ -0,0 +1,267 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of JDBC connections.
+ * <p>
+ * Connections are created lazily up to the configured size. A connection which was idle for a while is
+ * validated before it is handed out, broken ones are replaced. Every pooled connection caches its
+ * prepared statements, so a statement is prepared once per connection rather than once per caller.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+    private static final long VALIDATION_IDLE_MILLIS = 30_000;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long borrowTimeout;
+    private final int validationTimeout;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger size;
+    private final AtomicInteger active;
+    private final LongAdder borrowCount;
+    private final LongAdder waitCount;
+    private final LongAdder waitNanos;
+    private final LongAdder timeoutCount;
+    private volatile boolean closed;
+
+    /**
+     * @param config configuration of database connections and the pool
+     */
+    public ConnectionPool(Config config) {
+        url = config.getJdbcUrl();
+        user = config.getJdbcUser();
+        password = config.getJdbcPassword();
+        maxSize = config.getJdbcPoolSize();
+        borrowTimeout = config.getJdbcPoolTimeout();
+        validationTimeout = config.getJdbcValidationTimeout();
+        idle = new ArrayBlockingQueue<>(maxSize);
+        size = new AtomicInteger();
+        active = new AtomicInteger();
+        borrowCount = new LongAdder();
+        waitCount = new LongAdder();
+        waitNanos = new LongAdder();
+        timeoutCount = new LongAdder();
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one if the pool is not full.
+     * The connection must be returned by {@link PooledConnection#close()}.
+     *
+     * @return connection with auto-commit enabled
+     * @throws SQLTimeoutException if no connection became free within the pool timeout
+     * @throws SQLException        if failed to open a connection
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed)
+            throw new SQLException("Connection pool is closed");
+        borrowCount.increment();
+        PooledConnection connection = idle.poll();
+        if (connection == null)
+            connection = tryCreate();
+        if (connection == null)
+            connection = await();
+        connection = validate(connection);
+        active.incrementAndGet();
+        return connection;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    public long getWaitCount() {
+        return waitCount.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * @return average time in milliseconds a borrower waited for a free connection
+     */
+    public double getAverageWaitMillis() {
+        long waits = waitCount.sum();
+        return waits == 0 ? 0 : waitNanos.sum() / 1e6 / waits;
+    }
+
+    /**
+     * Closes idle connections and prevents new borrowing.
+     * Connections returned after that are closed at once.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null)
+            connection.destroy();
+    }
+
+    private PooledConnection tryCreate() throws SQLException {
+        while (true) {
+            int current = size.get();
+            if (current >= maxSize)
+                return null;
+            if (size.compareAndSet(current, current + 1))
+                break;
+        }
+        try {
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private PooledConnection await() throws SQLException {
+        waitCount.increment();
+        long start = System.nanoTime();
+        try {
+            PooledConnection connection = idle.poll(borrowTimeout, TimeUnit.MILLISECONDS);
+            if (connection == null) {
+                timeoutCount.increment();
+                throw new SQLTimeoutException("Timed out waiting for a database connection");
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private PooledConnection validate(PooledConnection connection) throws SQLException {
+        if (System.currentTimeMillis() - connection.releaseTime < VALIDATION_IDLE_MILLIS
+                || connection.connection.isValid(validationTimeout))
+            return connection;
+        LOGGER.log(Level.INFO, "Replacing broken database connection");
+        connection.destroy();
+        try {
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        connection.setAutoCommit(true);
+        return new PooledConnection(connection);
+    }
+
+    private void release(PooledConnection connection) {
+        active.decrementAndGet();
+        connection.releaseTime = System.currentTimeMillis();
+        boolean broken;
+        try {
+            broken = connection.discarded || connection.connection.isClosed()
+                    || !connection.connection.getAutoCommit();
+        } catch (SQLException e) {
+            broken = true;
+        }
+        if (closed || broken || !idle.offer(connection)) {
+            connection.destroy();
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Connection taken from the pool. Closing it returns it to the pool.
+     */
+    public final class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private long releaseTime;
+        private boolean discarded;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            statements = new HashMap<>();
+            releaseTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Gets the underlying connection. It must not be closed by the caller and
+         * must be left in auto-commit mode.
+         *
+         * @return JDBC connection
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Gets prepared statement for <code>sql</code>, preparing it on the first call.
+         *
+         * @param sql SQL statement
+         * @return cached prepared statement
+         * @throws SQLException if failed to prepare the statement
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * Marks the connection as broken, so it is closed instead of returned to the pool.
+         */
+        public void discard() {
+            discarded = true;
+        }
+
+        /**
+         * Returns the connection to the pool.
+         */
+        public void close() {
+            release(this);
+        }
+
+        private void destroy() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.log(Level.FINE, "Failed to close database connection", e);
+            }
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package ru.ifmo.degtiarenko.splat.server;
 
 import ru.ifmo.degtiarenko.splat.config.Config;
+import ru.ifmo.degtiarenko.splat.stat.LatencyHistogram;
 
 import java.sql.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -15,28 +23,144 @@ import java.util.logging.Logger;
  * <P>A connection (session) with a specific
  * database of accounts. Every account has an identifier(or id) and balance.
  * <p>
+ * Queries are executed on connections taken from a bounded {@link ConnectionPool}. Latencies of queries
+ * are recorded per {@link Operation}, together with time spent waiting for locks of account stripes.
+ * <p>
+ * Balances are flushed in chunks of <code>jdbc.flush_chunk</code> accounts, every chunk in its own
+ * transaction, either as JDBC batches of updates or as multi-row upserts, see {@link FlushMode}.
+ * With <code>jdbc.flush_threads</code> above one, the flush is split into ranges of identifiers
+ * written in parallel on different connections. Deltas are flushed the same way, by statements which add
+ * to balances instead of overwriting them.
+ * <p>
+ * If the recent warm-up or cache snapshots are enabled, every write also sets the <code>touched</code> column
+ * of the account to the next value of the <code>accounts_touched_seq</code> sequence, so changes are ordered by
+ * the database rather than by clocks of the services writing to it, see {@link #nextChangeMark()}. The column
+ * is not added to an existing table automatically: schema.sql contains the migration.
+ * <p>
+ * The JDBC driver is chosen by <code>jdbc.url</code> among drivers on the class path, so the service
+ * works with PostgreSQL as well as with an embedded database in PostgreSQL mode.
  */
 public class DBConnection implements AutoCloseable {
-    private final Connection connection;
-    private final ThreadLocal<PreparedStatement> updateStatement;
-    private final ThreadLocal<PreparedStatement> insertStatement;
-    private final ThreadLocal<PreparedStatement> selectStatement;
-    private final ConcurrentMap<Integer, Lock> locks;
+    private static final Logger LOGGER = Logger.getLogger(DBConnection.class.getName());
+    private static final String TOUCHED = "nextval('accounts_touched_seq')";
+    private static final String SELECT_SQL = "SELECT account FROM accounts WHERE id = ?;";
+    private static final String INSERT_SQL = "INSERT INTO accounts (id, account%s) VALUES (?, 0%s);";
+    private static final String UPDATE_SQL = "UPDATE accounts SET account = ?%s WHERE id = ?;";
+    private static final String ADD_SQL = "UPDATE accounts SET account = account + ?%s WHERE id = ?;";
+    private static final String INSERT_VALUE_SQL = "INSERT INTO accounts (id, account%s) VALUES (?, ?%s);";
+    private static final String CHECK_TOUCHED_SQL = "SELECT touched FROM accounts WHERE id = 0;";
+    private static final String MARK_SQL = "SELECT " + TOUCHED + ";";
+    private static final String SELECT_ALL_SQL = "SELECT id, account FROM accounts WHERE id = ANY(?);";
+    private static final String ID_RANGE_SQL = "SELECT min(id), max(id) FROM accounts;";
+    private static final String SCAN_SQL = "SELECT id, account FROM accounts WHERE id >= ? AND id <= ? ORDER BY id;";
+    private static final String SCAN_RECENT_SQL = "SELECT id, account FROM accounts ORDER BY touched DESC LIMIT ?;";
+    private static final String SCAN_CHANGED_SQL = "SELECT id, account FROM accounts WHERE touched > ?;";
+    private static final String UPSERT_SQL = "INSERT INTO accounts (id, account%1$s) VALUES %2$s "
+            + "ON CONFLICT (id) DO UPDATE SET account = EXCLUDED.account%3$s;";
+    private static final String MERGE_SQL = "MERGE INTO accounts (id, account%1$s) KEY (id) VALUES %2$s;";
+    private static final String ADD_UPSERT_SQL = "INSERT INTO accounts (id, account%1$s) VALUES %2$s "
+            + "ON CONFLICT (id) DO UPDATE SET account = accounts.account + EXCLUDED.account%3$s;";
+    private static final String ADD_MERGE_SQL = "MERGE INTO accounts "
+            + "USING (VALUES %2$s) AS changes (id, account%1$s) ON accounts.id = changes.id "
+            + "WHEN MATCHED THEN UPDATE SET account = accounts.account + changes.account%3$s "
+            + "WHEN NOT MATCHED THEN INSERT (id, account%1$s) VALUES (changes.id, changes.account%4$s);";
+    private static final int UPSERT_ROWS = 128;
+    private static final int LOCK_STRIPES = 1024;
+    private static final String UNIQUE_VIOLATION = "23505";
 
-    static {
-        try {
-            Class.forName("org.postgresql.Driver");
-        } catch (ClassNotFoundException e) {
-            Logger.getLogger(DBConnection.class.getName()).log(Level.ALL, null, e);
-        }
+    private final ConnectionPool pool;
+    private final Lock[] locks;
+    private final LatencyHistogram[] latencies;
+    private final LongAdder lockWaitNanos;
+    private final LongAdder lockWaitCount;
+    private final FlushMode flushMode;
+    private final int flushChunk;
+    private final int flushThreads;
+    private final ExecutorService flushExecutor;
+    private final boolean trackChanges;
+    private final String insertSql;
+    private final String updateSql;
+    private final String addSql;
+    private final String insertValueSql;
+    private final String upsertSql;
+    private final String upsertRowSql;
+    private final String addUpsertSql;
+    private final String addUpsertRowSql;
+
+    /**
+     * Way to write flushed balances.
+     */
+    public enum FlushMode {
+        /**
+         * A JDBC batch of updates per chunk, followed by a batch of inserts of accounts absent in the database.
+         */
+        BATCH,
+        /**
+         * Batches of multi-row upserts: <code>INSERT ... ON CONFLICT DO UPDATE</code> in PostgreSQL,
+         * <code>MERGE INTO ... KEY</code> in H2, which does not support the former. Deltas are added by
+         * <code>MERGE INTO ... USING</code> in H2, because its short form can only overwrite.
+         */
+        UPSERT
     }
 
-    private DBConnection(Connection connection) throws SQLException {
-        this.connection = connection;
-        locks = new ConcurrentHashMap<>();
-        updateStatement = new ThreadLocal<>();
-        insertStatement = new ThreadLocal<>();
-        selectStatement = new ThreadLocal<>();
+    /**
+     * Kind of executed statements.
+     */
+    public enum Operation {
+        SELECT, INSERT, UPDATE
+    }
+
+    /**
+     * Receives accounts read by a scan.
+     */
+    @FunctionalInterface
+    public interface AccountConsumer {
+        /**
+         * @param id     identifier of an account
+         * @param amount account's balance
+         * @return false to stop the scan
+         */
+        boolean accept(int id, long amount);
+    }
+
+    private DBConnection(ConnectionPool pool, Config config, boolean h2) {
+        this.pool = pool;
+        trackChanges = isTrackingChanges(config);
+        String column = trackChanges ? ", touched" : "";
+        String value = trackChanges ? ", " + TOUCHED : "";
+        insertSql = String.format(INSERT_SQL, column, value);
+        updateSql = String.format(UPDATE_SQL, trackChanges ? ", touched = " + TOUCHED : "");
+        addSql = String.format(ADD_SQL, trackChanges ? ", touched = " + TOUCHED : "");
+        insertValueSql = String.format(INSERT_VALUE_SQL, column, value);
+        flushMode = config.getJdbcFlushMode();
+        flushChunk = Math.max(config.getJdbcFlushChunk(), 1);
+        flushThreads = Math.max(config.getJdbcFlushThreads(), 1);
+        flushExecutor = flushThreads > 1 ? Executors.newFixedThreadPool(flushThreads, r -> {
+            Thread thread = new Thread(r, "database-flush");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        String upsert = h2 ? MERGE_SQL : UPSERT_SQL;
+        String row = "(?, ?" + value + ")";
+        StringBuilder rows = new StringBuilder(row);
+        for (int i = 1; i < UPSERT_ROWS; i++)
+            rows.append(", ").append(row);
+        String set = trackChanges ? ", touched = EXCLUDED.touched" : "";
+        upsertSql = String.format(upsert, column, rows, set);
+        upsertRowSql = String.format(upsert, column, row, set);
+        String add = h2 ? ADD_MERGE_SQL : ADD_UPSERT_SQL;
+        String addSet = !trackChanges ? "" : h2 ? ", touched = changes.touched" : set;
+        String addValue = trackChanges ? ", changes.touched" : "";
+        addUpsertSql = String.format(add, column, rows, addSet, addValue);
+        addUpsertRowSql = String.format(add, column, row, addSet, addValue);
+        locks = new Lock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new ReentrantLock();
+        latencies = new LatencyHistogram[Operation.values().length];
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new LatencyHistogram();
+        lockWaitNanos = new LongAdder();
+        lockWaitCount = new LongAdder();
     }
 
     /**
@@ -47,21 +171,43 @@ public class DBConnection implements AutoCloseable {
      * @throws Exception if fails to connect to SQL server
      */
     public static DBConnection createConnection(Config config) throws Exception {
-        Connection connection;
-        try {
-            connection = DriverManager.getConnection(config.getJdbcUrl(), config.getJdbcUser(), config.getJdbcPassword());
-            connection.setAutoCommit(true);
-            checkTable(connection);
-            return new DBConnection(connection);
+        ConnectionPool pool = new ConnectionPool(config);
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            checkTable(connection.getConnection(), isTrackingChanges(config));
+            String product = connection.getConnection().getMetaData().getDatabaseProductName();
+            return new DBConnection(pool, config, "H2".equalsIgnoreCase(product));
         } catch (SQLException e) {
+            pool.close();
             throw new Exception(e);
         }
     }
 
-    private static void checkTable(Connection connection) throws SQLException {
-        Statement statement = connection.createStatement();
-        statement.executeUpdate("CREATE TABLE IF NOT EXISTS accounts (" +
-                "id INTEGER PRIMARY KEY, account BIGINT);");
+    /**
+     * @return whether a feature reading the <code>touched</code> column is enabled
+     */
+    private static boolean isTrackingChanges(Config config) {
+        return config.getWarmupMode() == CacheWarmer.Mode.RECENT || !config.getSnapshotFile().isEmpty();
+    }
+
+    /**
+     * Creates the table if it is absent. If changes are tracked, also creates the sequence and the index
+     * of <code>touched</code>, but fails if an existing table has no such column.
+     */
+    private static void checkTable(Connection connection, boolean trackChanges) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS accounts (id INTEGER PRIMARY KEY, account BIGINT"
+                    + (trackChanges ? ", touched BIGINT DEFAULT 0" : "") + ");");
+            if (!trackChanges)
+                return;
+            try {
+                statement.executeQuery(CHECK_TOUCHED_SQL).close();
+            } catch (SQLException e) {
+                throw new SQLException("Table accounts has no touched column, which cache.warmup=recent and "
+                        + "cache.snapshot_file need; apply the migration from schema.sql", e);
+            }
+            statement.executeUpdate("CREATE SEQUENCE IF NOT EXISTS accounts_touched_seq;");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS accounts_touched_idx ON accounts (touched);");
+        }
     }
 
     /**
@@ -70,60 +216,592 @@ public class DBConnection implements AutoCloseable {
      * @throws SQLException if database access error occurs
      */
     public void close() throws SQLException {
-        connection.close();
+        if (flushExecutor != null)
+            flushExecutor.shutdown();
+        pool.close();
+    }
+
+    /**
+     * @return pool of connections used by this <code>DBConnection</code>
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
     }
 
     /**
      * Gets information about account's balance with chosen <code>id</code>  from SQL server.
+     * Creates the account with zero balance if it does not exist. Selecting and creating is serialized
+     * by a fixed set of lock stripes, so the same id is never inserted twice concurrently.
      *
      * @param id identifier of an account
      * @return account's balance
      * @throws SQLException if fails to execute query
      */
-    public AtomicLong getAmount(Integer id) throws SQLException {
-        if (selectStatement.get() == null)
-            selectStatement.set(connection.prepareStatement("SELECT account FROM accounts WHERE id = ?;"));
-        selectStatement.get().setInt(1, id);
+    public long getAmount(int id) throws SQLException {
+        Lock lock = locks[stripe(id)];
+        lock(lock);
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            return readOrCreate(connection, id);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        Lock lock = locks.getOrDefault(id, null);
-        if (lock == null) {
-            locks.putIfAbsent(id, new ReentrantLock());
-            lock = locks.get(id);
+    /**
+     * Selects the balance of the account on the connection, inserting it with zero balance if it is absent.
+     * Must be called under the lock stripe of the account.
+     */
+    private long readOrCreate(ConnectionPool.PooledConnection connection, int id) throws SQLException {
+        PreparedStatement selectStatement = connection.prepare(SELECT_SQL);
+        selectStatement.setInt(1, id);
+        long startTime = System.nanoTime();
+        try (ResultSet rs = selectStatement.executeQuery()) {
+            if (rs.next())
+                return rs.getLong(1);
+        } finally {
+            record(Operation.SELECT, startTime);
         }
-        lock.lock();
+        PreparedStatement insertStatement = connection.prepare(insertSql);
+        insertStatement.setInt(1, id);
+        startTime = System.nanoTime();
         try {
-            ResultSet rs = selectStatement.get().executeQuery();
-            if (rs.next()) {
-                return new AtomicLong(rs.getLong(1));
-            } else {
-                if (insertStatement.get() == null)
-                    insertStatement.set(connection.prepareStatement("INSERT INTO accounts (id, account) VALUES (?, 0);"));
-                insertStatement.get().setInt(1, id);
-                insertStatement.get().executeUpdate();
-                return new AtomicLong(0);
+            insertStatement.executeUpdate();
+            record(Operation.INSERT, startTime);
+        } catch (SQLException e) {
+            if (!isUniqueViolation(e))
+                throw e;
+            try (ResultSet rs = selectStatement.executeQuery()) {
+                if (rs.next())
+                    return rs.getLong(1);
             }
+            throw e;
+        }
+        return 0;
+    }
+
+    /**
+     * Gets balances of several accounts by one query, creating absent accounts with zero balance.
+     * If another process creates some of them concurrently, they are read one by one on the same connection,
+     * so the method never holds more than one connection of the pool.
+     *
+     * @param ids identifiers of accounts, without duplicates
+     * @return balances in the same order as <code>ids</code>
+     * @throws SQLException if fails to execute query
+     */
+    public long[] getAmounts(int[] ids) throws SQLException {
+        long[] amounts = new long[ids.length];
+        if (ids.length == 0)
+            return amounts;
+        int[] stripes = new int[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            stripes[i] = stripe(ids[i]);
+        stripes = Arrays.stream(stripes).sorted().distinct().toArray();
+        for (int stripe : stripes)
+            lock(locks[stripe]);
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            Integer[] boxedIds = new Integer[ids.length];
+            for (int i = 0; i < ids.length; i++)
+                boxedIds[i] = ids[i];
+            PreparedStatement selectStatement = connection.prepare(SELECT_ALL_SQL);
+            selectStatement.setArray(1, connection.getConnection().createArrayOf("INTEGER", boxedIds));
+            Map<Integer, Long> found = new HashMap<>(ids.length * 2);
+            long startTime = System.nanoTime();
+            try (ResultSet rs = selectStatement.executeQuery()) {
+                while (rs.next())
+                    found.put(rs.getInt(1), rs.getLong(2));
+            } finally {
+                record(Operation.SELECT, startTime);
+            }
+            PreparedStatement insertStatement = connection.prepare(insertSql);
+            boolean inserted = false;
+            for (int i = 0; i < ids.length; i++) {
+                Long amount = found.get(ids[i]);
+                if (amount != null) {
+                    amounts[i] = amount;
+                } else {
+                    insertStatement.setInt(1, ids[i]);
+                    insertStatement.addBatch();
+                    inserted = true;
+                }
+            }
+            if (inserted) {
+                try {
+                    startTime = System.nanoTime();
+                    insertStatement.executeBatch();
+                    record(Operation.INSERT, startTime);
+                } catch (SQLException e) {
+                    if (!isUniqueViolation(e))
+                        throw e;
+                    for (int i = 0; i < ids.length; i++) {
+                        if (!found.containsKey(ids[i]))
+                            amounts[i] = readOrCreate(connection, ids[i]);
+                    }
+                }
+            }
+            return amounts;
         } finally {
-            lock.unlock();
+            for (int i = stripes.length - 1; i >= 0; i--)
+                locks[stripes[i]].unlock();
         }
     }
 
     /**
-     * Updates balances in database.
+     * Writes balances to the database, creating absent accounts.
+     *
+     * @param data new balances, without duplicate identifiers
+     * @throws SQLException if failed to write some chunk; other chunks are still written
+     */
+    public void updateData(AccountBatch data) throws SQLException {
+        updateData(data, new AccountBatch());
+    }
+
+    /**
+     * Writes balances to the database in chunks, creating absent accounts. Every chunk is written
+     * in its own transaction in ascending order of identifiers, so it is either written completely or
+     * not at all, and concurrent flushes of several processes do not deadlock.
      *
-     * @param data new balances
-     * @throws SQLException if query execution is failed
+     * @param data   new balances, without duplicate identifiers
+     * @param failed batch to append balances of chunks which were not written to
+     * @throws SQLException the failure of the first failed chunk, with failures of others suppressed;
+     *                      other chunks are still written
      */
-    public void updateData(ConcurrentMap<Integer, AtomicLong> data) throws SQLException {
-        data.forEach((id, account) -> {
+    public void updateData(AccountBatch data, AccountBatch failed) throws SQLException {
+        write(data, null, failed);
+    }
+
+    /**
+     * Adds changes to balances in the database in chunks, creating absent accounts, and reads the resulting
+     * balances, which include changes made by other processes sharing the database. Chunks are written
+     * like by {@link #updateData(AccountBatch, AccountBatch)}: every one in its own transaction, in ascending
+     * order of identifiers, in parallel ranges if <code>jdbc.flush_threads</code> is above one.
+     *
+     * @param deltas   values to add, without duplicate identifiers
+     * @param balances batch to append resulting balances of written chunks to
+     * @param failed   batch to append deltas of chunks which were not added to
+     * @throws SQLException the failure of the first failed chunk, with failures of others suppressed;
+     *                      other chunks are still written
+     */
+    public void addData(AccountBatch deltas, AccountBatch balances, AccountBatch failed) throws SQLException {
+        write(deltas, balances, failed);
+    }
+
+    /**
+     * Writes balances or adds deltas in chunks, splitting them into ranges written in parallel.
+     *
+     * @param balances <code>null</code> if <code>data</code> holds balances; otherwise <code>data</code>
+     *                 holds deltas, and resulting balances are appended to this batch
+     */
+    private void write(AccountBatch data, AccountBatch balances, AccountBatch failed) throws SQLException {
+        int[] order = sortById(data);
+        int ranges = Math.min(flushThreads, (order.length + flushChunk - 1) / flushChunk);
+        if (ranges <= 1) {
+            SQLException failure = writeRange(data, order, 0, order.length, balances, failed);
+            if (failure != null)
+                throw failure;
+            return;
+        }
+        int[] bounds = new int[ranges + 1];
+        for (int range = 1; range <= ranges; range++)
+            bounds[range] = (int) ((long) order.length * range / ranges);
+        List<Future<SQLException>> futures = new ArrayList<>(ranges);
+        AccountBatch[] rangeFailures = new AccountBatch[ranges];
+        AccountBatch[] rangeBalances = new AccountBatch[ranges];
+        for (int range = 0; range < ranges; range++) {
+            int from = bounds[range];
+            int to = bounds[range + 1];
+            AccountBatch rangeFailed = new AccountBatch(0);
+            AccountBatch rangeWritten = balances != null ? new AccountBatch(0) : null;
+            rangeFailures[range] = rangeFailed;
+            rangeBalances[range] = rangeWritten;
+            futures.add(flushExecutor.submit(() -> writeRange(data, order, from, to, rangeWritten, rangeFailed)));
+        }
+        SQLException failure = null;
+        for (int range = 0; range < ranges; range++) {
+            AccountBatch rangeFailed = rangeFailures[range];
+            SQLException rangeFailure;
             try {
-                if (updateStatement.get() == null)
-                    updateStatement.set(connection.prepareStatement("UPDATE accounts SET account = ? WHERE id = ?;"));
-                updateStatement.get().setLong(1, account.longValue());
-                updateStatement.get().setInt(2, id);
-                updateStatement.get().executeUpdate();
+                rangeFailure = futures.get(range).get();
+            } catch (InterruptedException | ExecutionException e) {
+                if (e instanceof InterruptedException)
+                    Thread.currentThread().interrupt();
+                rangeFailure = new SQLException("Failed to write a range of balances", e);
+                rangeFailed = new AccountBatch(0);
+                for (int j = bounds[range]; j < bounds[range + 1]; j++)
+                    rangeFailed.add(data.getId(order[j]), data.getValue(order[j]));
+                rangeBalances[range] = null;
+            }
+            for (int i = 0; i < rangeFailed.size(); i++)
+                failed.add(rangeFailed.getId(i), rangeFailed.getValue(i));
+            AccountBatch rangeWritten = rangeBalances[range];
+            if (rangeWritten != null) {
+                for (int i = 0; i < rangeWritten.size(); i++)
+                    balances.add(rangeWritten.getId(i), rangeWritten.getValue(i));
+            }
+            failure = addFailure(failure, rangeFailure);
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Writes positions <code>from</code> to <code>to</code> of <code>order</code> chunk by chunk on one connection.
+     * Resulting balances of a chunk of deltas are read in the transaction of the chunk. If the connection fails
+     * after a chunk is committed, the chunk counts as written and the rest is written on another connection.
+     *
+     * @param balances <code>null</code> if <code>data</code> holds balances, otherwise batch to append
+     *                 resulting balances of written chunks to
+     * @return the failure of the first failed chunk, or <code>null</code> if all chunks are written
+     */
+    private SQLException writeRange(AccountBatch data, int[] order, int from, int to, AccountBatch balances,
+                                    AccountBatch failed) {
+        SQLException failure = null;
+        int start = from;
+        while (start < to) {
+            try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+                Connection sqlConnection = connection.getConnection();
+                boolean usable = true;
+                for (; start < to && usable; start += flushChunk) {
+                    int end = Math.min(start + flushChunk, to);
+                    int written = balances != null ? balances.size() : 0;
+                    boolean committed = false;
+                    try {
+                        sqlConnection.setAutoCommit(false);
+                        try {
+                            if (flushMode == FlushMode.UPSERT) {
+                                if (balances != null)
+                                    upsertChunk(connection, addUpsertSql, addUpsertRowSql, data, order, start, end);
+                                else
+                                    upsertChunk(connection, upsertSql, upsertRowSql, data, order, start, end);
+                            } else {
+                                updateChunk(connection, balances != null ? addSql : updateSql, data, order,
+                                        start, end);
+                            }
+                            if (balances != null)
+                                readChunk(connection, data, order, start, end, balances);
+                            sqlConnection.commit();
+                            committed = true;
+                        } finally {
+                            if (!sqlConnection.getAutoCommit()) {
+                                if (!committed)
+                                    sqlConnection.rollback();
+                                sqlConnection.setAutoCommit(true);
+                            }
+                        }
+                    } catch (SQLException | RuntimeException e) {
+                        if (committed) {
+                            // the chunk is written, only the connection is broken: it is replaced for the rest
+                            LOGGER.log(Level.WARNING, "Failed to reset a database connection after a commit", e);
+                            connection.discard();
+                            usable = false;
+                            continue;
+                        }
+                        // a chunk is failed exactly when it is rolled back, so deltas are never added twice
+                        if (balances != null)
+                            balances.truncate(written);
+                        for (int j = start; j < end; j++)
+                            failed.add(data.getId(order[j]), data.getValue(order[j]));
+                        failure = addFailure(failure, e instanceof SQLException ? (SQLException) e
+                                : new SQLException("Failed to write a chunk of balances", e));
+                    }
+                }
             } catch (SQLException e) {
-                e.printStackTrace();
+                for (int j = start; j < to; j++)
+                    failed.add(data.getId(order[j]), data.getValue(order[j]));
+                failure = addFailure(failure, e);
+                break;
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Writes a chunk by a batch of updates, <code>sql</code> either overwriting or adding to balances,
+     * then inserts accounts which were not updated.
+     */
+    private void updateChunk(ConnectionPool.PooledConnection connection, String sql, AccountBatch data, int[] order,
+                             int start, int end) throws SQLException {
+        PreparedStatement updateStatement = connection.prepare(sql);
+        for (int j = start; j < end; j++) {
+            updateStatement.setLong(1, data.getValue(order[j]));
+            updateStatement.setInt(2, data.getId(order[j]));
+            updateStatement.addBatch();
+        }
+        long startTime = System.nanoTime();
+        int[] counts = updateStatement.executeBatch();
+        record(Operation.UPDATE, startTime);
+        PreparedStatement insertStatement = connection.prepare(insertValueSql);
+        boolean inserted = false;
+        for (int j = start; j < end; j++) {
+            if (counts[j - start] == 0) {
+                insertStatement.setInt(1, data.getId(order[j]));
+                insertStatement.setLong(2, data.getValue(order[j]));
+                insertStatement.addBatch();
+                inserted = true;
+            }
+        }
+        if (inserted) {
+            startTime = System.nanoTime();
+            insertStatement.executeBatch();
+            record(Operation.INSERT, startTime);
+        }
+    }
+
+    /**
+     * Writes a chunk by multi-row upserts of <code>sql</code>, the tail of the chunk by single-row upserts
+     * of <code>rowSql</code>.
+     */
+    private void upsertChunk(ConnectionPool.PooledConnection connection, String sql, String rowSql,
+                             AccountBatch data, int[] order, int start, int end) throws SQLException {
+        int j = start;
+        if (end - start >= UPSERT_ROWS) {
+            PreparedStatement upsertStatement = connection.prepare(sql);
+            for (; j + UPSERT_ROWS <= end; j += UPSERT_ROWS) {
+                for (int row = 0; row < UPSERT_ROWS; row++)
+                    setRow(upsertStatement, row, data, order[j + row]);
+                upsertStatement.addBatch();
+            }
+            long startTime = System.nanoTime();
+            upsertStatement.executeBatch();
+            record(Operation.UPDATE, startTime);
+        }
+        if (j < end) {
+            PreparedStatement upsertStatement = connection.prepare(rowSql);
+            for (; j < end; j++) {
+                setRow(upsertStatement, 0, data, order[j]);
+                upsertStatement.addBatch();
             }
-        });
+            long startTime = System.nanoTime();
+            upsertStatement.executeBatch();
+            record(Operation.UPDATE, startTime);
+        }
+    }
+
+    /**
+     * Reads balances of accounts of a chunk and appends them to <code>balances</code>.
+     */
+    private void readChunk(ConnectionPool.PooledConnection connection, AccountBatch data, int[] order,
+                           int start, int end, AccountBatch balances) throws SQLException {
+        Integer[] ids = new Integer[end - start];
+        for (int j = start; j < end; j++)
+            ids[j - start] = data.getId(order[j]);
+        PreparedStatement selectStatement = connection.prepare(SELECT_ALL_SQL);
+        selectStatement.setArray(1, connection.getConnection().createArrayOf("INTEGER", ids));
+        long startTime = System.nanoTime();
+        try (ResultSet rs = selectStatement.executeQuery()) {
+            while (rs.next())
+                balances.add(rs.getInt(1), rs.getLong(2));
+        } finally {
+            record(Operation.SELECT, startTime);
+        }
+    }
+
+    private static void setRow(PreparedStatement statement, int row, AccountBatch data, int i) throws SQLException {
+        statement.setInt(row * 2 + 1, data.getId(i));
+        statement.setLong(row * 2 + 2, data.getValue(i));
+    }
+
+    /**
+     * @return positions of <code>data</code> in ascending order of identifiers
+     */
+    private static int[] sortById(AccountBatch data) {
+        long[] packed = new long[data.size()];
+        for (int i = 0; i < packed.length; i++)
+            packed[i] = (long) data.getId(i) << Integer.SIZE | i;
+        Arrays.sort(packed);
+        int[] order = new int[packed.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = (int) packed[i];
+        return order;
+    }
+
+    private static SQLException addFailure(SQLException failure, SQLException e) {
+        if (e == null)
+            return failure;
+        if (failure == null)
+            return e;
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    /**
+     * @param operation kind of statements
+     * @return latencies of statements in nanoseconds; a batch is recorded as one statement
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    /**
+     * @return total time spent waiting for locks of account stripes, in nanoseconds
+     */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    /**
+     * @return amount of lock acquisitions which had to wait
+     */
+    public long getLockWaitCount() {
+        return lockWaitCount.sum();
+    }
+
+    /**
+     * Resets latencies and lock waits.
+     */
+    public void resetStatistics() {
+        for (LatencyHistogram latency : latencies)
+            latency.reset();
+        lockWaitNanos.reset();
+        lockWaitCount.reset();
+    }
+
+    private void lock(Lock lock) {
+        if (lock.tryLock())
+            return;
+        long startTime = System.nanoTime();
+        lock.lock();
+        lockWaitNanos.add(System.nanoTime() - startTime);
+        lockWaitCount.increment();
+    }
+
+    private void record(Operation operation, long startTime) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startTime);
+    }
+
+    private static boolean isUniqueViolation(SQLException e) {
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            if (UNIQUE_VIOLATION.equals(cause.getSQLState()))
+                return true;
+        }
+        return false;
+    }
+
+    private static int stripe(int id) {
+        return (id * 0x9E3779B9 >>> 16) & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Gets the smallest and the largest account identifiers.
+     *
+     * @return array of two identifiers, or <code>null</code> if there are no accounts
+     * @throws SQLException if fails to execute query
+     */
+    public int[] getIdRange() throws SQLException {
+        try (ConnectionPool.PooledConnection connection = pool.borrow();
+             ResultSet rs = connection.prepare(ID_RANGE_SQL).executeQuery()) {
+            if (!rs.next())
+                return null;
+            int min = rs.getInt(1);
+            if (rs.wasNull())
+                return null;
+            return new int[]{min, rs.getInt(2)};
+        }
+    }
+
+    /**
+     * Reads accounts with identifiers from <code>fromId</code> to <code>toId</code> inclusive in
+     * ascending order of identifiers. Rows are fetched by a cursor, <code>fetchSize</code> rows at a time.
+     *
+     * @param fromId    the smallest identifier
+     * @param toId      the largest identifier
+     * @param fetchSize amount of rows fetched at once
+     * @param consumer  receiver of accounts
+     * @throws SQLException if fails to execute query
+     */
+    public void scanAccounts(int fromId, int toId, int fetchSize, AccountConsumer consumer) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            PreparedStatement statement = connection.prepare(SCAN_SQL);
+            statement.setInt(1, fromId);
+            statement.setInt(2, toId);
+            scan(connection.getConnection(), statement, fetchSize, consumer);
+        }
+    }
+
+    /**
+     * Reads at most <code>limit</code> accounts changed most recently, the most recent first.
+     *
+     * @param limit     maximal amount of accounts
+     * @param fetchSize amount of rows fetched at once
+     * @param consumer  receiver of accounts
+     * @throws SQLException if fails to execute query
+     */
+    public void scanRecentAccounts(int limit, int fetchSize, AccountConsumer consumer) throws SQLException {
+        checkTrackingChanges();
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            PreparedStatement statement = connection.prepare(SCAN_RECENT_SQL);
+            statement.setInt(1, limit);
+            scan(connection.getConnection(), statement, fetchSize, consumer);
+        }
+    }
+
+    /**
+     * Takes a mark which orders changes of accounts: every account changed after the call gets
+     * <code>touched</code> greater than the mark.
+     *
+     * @return the next value of the <code>accounts_touched_seq</code> sequence
+     * @throws SQLException          if fails to execute query
+     * @throws IllegalStateException if changes are not tracked, see {@link #isTrackingChanges()}
+     */
+    public long nextChangeMark() throws SQLException {
+        checkTrackingChanges();
+        try (ConnectionPool.PooledConnection connection = pool.borrow();
+             ResultSet rs = connection.prepare(MARK_SQL).executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Reads all accounts changed after the mark.
+     *
+     * @param since     mark taken by {@link #nextChangeMark()}
+     * @param fetchSize amount of rows fetched at once
+     * @param consumer  receiver of accounts
+     * @throws SQLException if fails to execute query
+     */
+    public void scanChangedAccounts(long since, int fetchSize, AccountConsumer consumer) throws SQLException {
+        checkTrackingChanges();
+        try (ConnectionPool.PooledConnection connection = pool.borrow()) {
+            PreparedStatement statement = connection.prepare(SCAN_CHANGED_SQL);
+            statement.setLong(1, since);
+            scan(connection.getConnection(), statement, fetchSize, consumer);
+        }
+    }
+
+    /**
+     * @return whether writes set <code>touched</code>, which happens only if the recent warm-up or cache snapshots
+     * are enabled
+     */
+    public boolean isTrackingChanges() {
+        return trackChanges;
+    }
+
+    private void checkTrackingChanges() {
+        if (!trackChanges)
+            throw new IllegalStateException("Changes of accounts are not tracked");
+    }
+
+    /**
+     * Executes the query inside a read-only transaction, because PostgreSQL uses a cursor
+     * for the fetch size only when auto-commit is disabled.
+     */
+    private static void scan(Connection connection, PreparedStatement statement, int fetchSize,
+                             AccountConsumer consumer) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            statement.setFetchSize(fetchSize);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    if (!consumer.accept(rs.getInt(1), rs.getLong(2)))
+                        break;
+                }
+            }
+            connection.commit();
+        } finally {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
     }
 }
@@ -0,0 +1,149 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of threads which run database queries of requests, so a slow database cannot occupy
+ * all request threads.
+ * <p>
+ * Queries wait in a queue of limited size. When the queue is full, or a query is not done within the
+ * timeout, the request fails at once with {@link OverloadedException} instead of waiting. Requests served
+ * by the cache never touch the pool, so they stay fast while the database is slow. A queue of size 0
+ * hands queries to idle threads only.
+ */
+public class DatabaseExecutor implements AutoCloseable {
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final long timeout;
+    private final LongAdder rejectedCount;
+    private final LongAdder timeoutCount;
+
+    /**
+     * Query of a request.
+     */
+    @FunctionalInterface
+    public interface Query<T> {
+        T execute() throws SQLException;
+    }
+
+    /**
+     * @param config configuration with jdbc.executor_* keys
+     */
+    public DatabaseExecutor(Config config) {
+        queueCapacity = config.getJdbcExecutorQueue();
+        timeout = config.getJdbcExecutorTimeout();
+        executor = new ThreadPoolExecutor(config.getJdbcExecutorThreads(), config.getJdbcExecutorThreads(),
+                0, TimeUnit.MILLISECONDS, createQueue(queueCapacity), r -> {
+            Thread thread = new Thread(r, "database-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rejectedCount = new LongAdder();
+        timeoutCount = new LongAdder();
+    }
+
+    private static BlockingQueue<Runnable> createQueue(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("jdbc.executor_queue must not be negative: " + capacity);
+        return capacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Runs the query in the pool and waits for its result.
+     *
+     * @param query query to run
+     * @return result of the query
+     * @throws OverloadedException if the queue is full or the query is not done within the timeout
+     * @throws SQLException        if the query failed
+     */
+    public <T> T call(Query<T> query) throws SQLException {
+        Future<T> future;
+        try {
+            future = executor.submit(query::execute);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            throw new OverloadedException("Database queue is full");
+        }
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeoutCount.increment();
+            throw new OverloadedException("Database query is not done in " + timeout + " ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the database", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new SQLException("Database query failed", cause);
+        }
+    }
+
+    /**
+     * @return amount of queries waiting for a thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return amount of queries being executed
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getThreadCount() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return amount of queries rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return amount of queries abandoned because they were not done within the timeout
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * Resets rejection and timeout counters.
+     */
+    public void resetStatistics() {
+        rejectedCount.reset();
+        timeoutCount.reset();
+    }
+
+    /**
+     * Stops the threads after queries already queued are done.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,200 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of hot accounts of an {@link AccountTable}: accounts whose segment lock is contended by writers.
+ * <p>
+ * Contended lock acquisitions are counted per hashed identifier. When the count of an account reaches
+ * the threshold within one flush period, the account gets a {@link Cell} of striped counters, in the
+ * spirit of <code>LongAdder</code>: writers add to the stripe of their thread without taking the segment
+ * lock, readers sum the stripes, and the flush folds the stripes into the cached balance.
+ * Cells are looked up in an open-addressing array which is copied on every change, so lookups
+ * need no locks. Promotions and demotions are rare, so copying is cheap.
+ */
+final class HotAccounts {
+    /**
+     * Value of a stripe of a demoted cell. A writer which sees it must fall back to the locked path.
+     */
+    static final long SEALED = Long.MIN_VALUE;
+
+    private static final int CONTENTION_SLOTS = 1024;
+    private static final int MAX_STRIPES = 64;
+    /**
+     * Longs per stripe, so that stripes are on different cache lines: the sum and the amount of additions.
+     */
+    private static final int STRIDE = 8;
+
+    private final AtomicIntegerArray contention;
+    private final int threshold;
+    private final int maxCount;
+    private final int stripeCount;
+    private volatile Cell[] cells;
+    private int count;
+
+    /**
+     * Striped counter of one hot account.
+     */
+    static final class Cell {
+        final int id;
+        private final AtomicLongArray stripes;
+
+        Cell(int id, int stripeCount) {
+            this.id = id;
+            stripes = new AtomicLongArray(stripeCount * STRIDE);
+        }
+
+        /**
+         * @return false if the cell is sealed and the delta must be added under the segment lock
+         */
+        boolean add(long delta) {
+            int stripe = (int) (Thread.currentThread().getId() & (stripes.length() / STRIDE - 1)) * STRIDE;
+            while (true) {
+                long sum = stripes.get(stripe);
+                if (sum == SEALED)
+                    return false;
+                if (stripes.compareAndSet(stripe, sum, sum + delta)) {
+                    stripes.getAndIncrement(stripe + 1);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return sum of deltas not folded yet
+         */
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < stripes.length(); i += STRIDE) {
+                long stripe = stripes.get(i);
+                if (stripe != SEALED)
+                    sum += stripe;
+            }
+            return sum;
+        }
+
+        /**
+         * Takes deltas added since the previous call.
+         *
+         * @param seal whether to seal stripes, so that the following additions fail
+         * @return sum of taken deltas
+         */
+        long drain(boolean seal) {
+            long sum = 0;
+            for (int i = 0; i < stripes.length(); i += STRIDE) {
+                long stripe = stripes.getAndSet(i, seal ? SEALED : 0);
+                if (stripe != SEALED)
+                    sum += stripe;
+            }
+            return sum;
+        }
+
+        /**
+         * @return amount of additions since the previous call
+         */
+        long drainAdditions() {
+            long additions = 0;
+            for (int i = 1; i < stripes.length(); i += STRIDE)
+                additions += stripes.getAndSet(i, 0);
+            return additions;
+        }
+    }
+
+    /**
+     * @param threshold contended lock acquisitions per flush period which make an account hot;
+     *                  a hot account with fewer additions per flush period is demoted
+     * @param maxCount  maximal amount of hot accounts
+     */
+    HotAccounts(int threshold, int maxCount) {
+        contention = new AtomicIntegerArray(CONTENTION_SLOTS);
+        this.threshold = threshold;
+        this.maxCount = maxCount;
+        int stripes = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 1) * 2 - 1);
+        stripeCount = Math.min(stripes, MAX_STRIPES);
+        cells = new Cell[Integer.highestOneBit(Math.max(maxCount, 1)) * 4];
+    }
+
+    /**
+     * @return the cell of the account, or <code>null</code> if it is not hot
+     */
+    Cell get(int id, int hash) {
+        Cell[] cells = this.cells;
+        int mask = cells.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            Cell cell = cells[index];
+            if (cell == null || cell.id == id)
+                return cell;
+        }
+    }
+
+    /**
+     * Counts a contended acquisition of the segment lock by a writer of the account.
+     *
+     * @return true if the account should be promoted
+     */
+    boolean contended(int hash) {
+        return contention.incrementAndGet(hash & (CONTENTION_SLOTS - 1)) == threshold;
+    }
+
+    /**
+     * Starts a new flush period of contention counting.
+     */
+    void resetContention() {
+        for (int i = 0; i < CONTENTION_SLOTS; i++) {
+            if (contention.get(i) != 0)
+                contention.set(i, 0);
+        }
+    }
+
+    /**
+     * @return whether a hot account with <code>additions</code> during the last flush period should be demoted
+     */
+    boolean isCold(long additions) {
+        return additions < threshold;
+    }
+
+    /**
+     * Creates a cell for the account. Must be called under the segment lock of the account.
+     *
+     * @return the new cell, or <code>null</code> if there are too many hot accounts
+     */
+    synchronized Cell promote(int id, int hash) {
+        if (count >= maxCount)
+            return null;
+        Cell cell = new Cell(id, stripeCount);
+        Cell[] promoted = cells.clone();
+        insert(promoted, cell, hash);
+        count++;
+        cells = promoted;
+        return cell;
+    }
+
+    /**
+     * Removes the sealed cell of the account. Must be called under the segment lock of the account.
+     */
+    synchronized void demote(int id) {
+        Cell[] demoted = new Cell[cells.length];
+        for (Cell cell : cells) {
+            if (cell != null && cell.id != id)
+                insert(demoted, cell, AccountTable.hash(cell.id));
+        }
+        count--;
+        cells = demoted;
+    }
+
+    /**
+     * @return amount of hot accounts
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    private static void insert(Cell[] cells, Cell cell, int hash) {
+        int mask = cells.length - 1;
+        int index = hash & mask;
+        while (cells[index] != null)
+            index = (index + 1) & mask;
+        cells[index] = cell;
+    }
+}
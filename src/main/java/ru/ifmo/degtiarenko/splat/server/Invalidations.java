@@ -0,0 +1,37 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.io.Serializable;
+
+/**
+ * Identifiers of leased accounts changed between two polls.
+ */
+public class Invalidations implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] ids;
+    private final long next;
+    private final boolean complete;
+
+    /**
+     * @param ids      identifiers of changed accounts, possibly with duplicates
+     * @param next     position to poll from next time
+     * @param complete false if some changes were lost, so all cached balances must be dropped
+     */
+    public Invalidations(int[] ids, long next, boolean complete) {
+        this.ids = ids;
+        this.next = next;
+        this.complete = complete;
+    }
+
+    public int[] getIds() {
+        return ids;
+    }
+
+    public long getNext() {
+        return next;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+}
@@ -0,0 +1,443 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of balance changes stored in memory-mapped segment files.
+ * <p>
+ * Every change is appended by the cache under the lock of the changed entry, so records of one account
+ * are in the order of changes. A record holds the delta and the resulting balance, and replay takes the
+ * last balance of every account, which makes replay idempotent.
+ * <p>
+ * Appending takes no global lock: a writer reserves space by an atomic increment of the position and writes
+ * its record into the mapped segment directly. Records are published in the order of their positions, so the
+ * committer forces only completely written records; a writer waits only for writers with smaller positions
+ * which are still copying their 24 bytes. The lock of the segment list is taken only by the writer which
+ * crosses into a new segment and by the committer.
+ * <p>
+ * In <code>group</code> mode a writer waits until its record is forced to disk; a single committer thread
+ * forces all records appended so far, so many concurrent writers share one <code>force</code>. In
+ * <code>async</code> mode records are forced periodically and writers do not wait. If forcing fails, the
+ * committer retries with a growing delay; until it succeeds, waiting writers fail and the failure is reported
+ * by {@link #getFailure()}.
+ * <p>
+ * A checkpoint does not start a new segment: the flusher takes the number of the current segment before
+ * it drains dirty entries and releases older segments after all drained entries are written to the database.
+ * A new segment is created only when the current one is full, so segments live for
+ * <code>journal.segment_size</code> bytes of changes rather than for one flush. Records of the current segment
+ * written before the checkpoint are replayed again after a crash, which is harmless: replay keeps the last
+ * balance of every account anyway.
+ */
+public class Journal implements AccountTable.UpdateListener, AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(Journal.class.getName());
+    private static final int RECORD_SIZE = 24;
+    private static final long CHECKSUM_SALT = 0x5DEECE66DL;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final long MIN_RETRY_DELAY = 10;
+    private static final long MAX_RETRY_DELAY = 1000;
+
+    /**
+     * How long an acknowledged change may stay only in memory.
+     */
+    public enum Mode {
+        OFF, ASYNC, GROUP
+    }
+
+    private final Path directory;
+    private final Mode mode;
+    private final int segmentSize;
+    private final long flushInterval;
+    private final long commitDelayMicros;
+    private final Object monitor;
+    private final List<Segment> segments;
+    private final long firstNumber;
+    private final AtomicLong reservedPosition;
+    private final AtomicLong writtenPosition;
+    private final LongAdder failureCount;
+    private final Thread committer;
+
+    private volatile Segment current;
+    private volatile long durablePosition;
+    private long requestedPosition;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    /**
+     * Mapped segment file. Positions of the journal from <code>index * segmentSize</code> inclusive to
+     * <code>(index + 1) * segmentSize</code> exclusive are stored in it.
+     */
+    private static final class Segment {
+        final long index;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(long index, FileChannel channel, MappedByteBuffer buffer) {
+            this.index = index;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Opens the journal in the configured directory. Existing segments are left for {@link #recover()}.
+     *
+     * @param config configuration of the journal
+     * @throws IOException if failed to create the first segment
+     */
+    public Journal(Config config) throws IOException {
+        directory = Paths.get(config.getJournalDirectory());
+        mode = config.getJournalMode();
+        segmentSize = config.getJournalSegmentSize() / RECORD_SIZE * RECORD_SIZE;
+        flushInterval = config.getJournalFlushInterval();
+        commitDelayMicros = config.getJournalCommitDelay();
+        monitor = new Object();
+        segments = new ArrayList<>();
+        Files.createDirectories(directory);
+        List<Long> existing = segmentNumbers();
+        firstNumber = (existing.isEmpty() ? 0 : existing.get(existing.size() - 1)) + 1;
+        reservedPosition = new AtomicLong();
+        writtenPosition = new AtomicLong();
+        failureCount = new LongAdder();
+        current = openSegment(0);
+        segments.add(current);
+        committer = new Thread(this::commit, "journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Reads all segments written before this journal was opened. Records with wrong checksums are skipped:
+     * records are written concurrently, so a crash may leave an incomplete record before complete ones.
+     *
+     * @return the last journaled balance of every account, in the order of first appearance
+     * @throws IOException if failed to read a segment
+     */
+    public AccountBatch recover() throws IOException {
+        Map<Integer, Long> balances = new LinkedHashMap<>();
+        for (long number : segmentNumbers()) {
+            if (number >= firstNumber)
+                break;
+            try (FileChannel file = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+                MappedByteBuffer segment = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                for (int position = 0; position + RECORD_SIZE <= segment.limit(); position += RECORD_SIZE) {
+                    int checksum = segment.getInt(position);
+                    int id = segment.getInt(position + 4);
+                    long delta = segment.getLong(position + 8);
+                    long balance = segment.getLong(position + 16);
+                    if (checksum == checksum(position, id, delta, balance))
+                        balances.put(id, balance);
+                }
+            }
+        }
+        AccountBatch batch = new AccountBatch(Math.max(balances.size(), 1));
+        balances.forEach(batch::add);
+        return batch;
+    }
+
+    /**
+     * Deletes segments written before this journal was opened, after {@link #recover()}ed balances
+     * are written to the database.
+     *
+     * @throws IOException if failed to delete a segment
+     */
+    public void discardRecovered() throws IOException {
+        for (long number : segmentNumbers()) {
+            if (number < firstNumber)
+                Files.deleteIfExists(segmentPath(number));
+        }
+    }
+
+    /**
+     * Appends a change of balance. Called by the cache under the lock of the entry before the change is applied.
+     *
+     * @throws UncheckedIOException if failed to start a new segment
+     */
+    @Override
+    public void onUpdate(int id, long delta, long balance) {
+        long position = reservedPosition.getAndAdd(RECORD_SIZE);
+        try {
+            MappedByteBuffer buffer = segment(position / segmentSize).buffer;
+            int offset = (int) (position % segmentSize);
+            buffer.putInt(offset, checksum(offset, id, delta, balance));
+            buffer.putInt(offset + 4, id);
+            buffer.putLong(offset + 8, delta);
+            buffer.putLong(offset + 16, balance);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to start a new journal segment", e);
+        } finally {
+            publish(position);
+        }
+    }
+
+    /**
+     * Waits until all changes appended before the call are forced to disk. Returns at once unless
+     * the journal is in <code>group</code> mode.
+     *
+     * @throws IOException if the journal failed to force changes
+     */
+    public void awaitDurable() throws IOException {
+        if (mode != Mode.GROUP)
+            return;
+        long target = writtenPosition.get();
+        if (durablePosition >= target)
+            return;
+        synchronized (monitor) {
+            if (requestedPosition < target) {
+                requestedPosition = target;
+                monitor.notifyAll();
+            }
+            while (durablePosition < target) {
+                if (failure != null)
+                    throw new IOException("Journal is not durable", failure);
+                try {
+                    monitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the journal", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the moment before dirty entries are drained: all changes appended before the call are in the current
+     * segment or in older ones.
+     *
+     * @return checkpoint to pass to {@link #release(long)}
+     */
+    public long checkpoint() {
+        return firstNumber + reservedPosition.get() / segmentSize;
+    }
+
+    /**
+     * Deletes segments older than the segment of the checkpoint, after all changes appended before the checkpoint
+     * are written to the database.
+     *
+     * @param checkpoint value returned by {@link #checkpoint()}
+     */
+    public void release(long checkpoint) {
+        try {
+            for (long number : segmentNumbers()) {
+                if (number < checkpoint)
+                    Files.deleteIfExists(segmentPath(number));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete journal segments", e);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return amount of bytes appended since the journal was opened
+     */
+    public long getAppendedBytes() {
+        return writtenPosition.get();
+    }
+
+    /**
+     * @return the last failure to force the journal, or <code>null</code> if the journal has been forced
+     * successfully since then
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return amount of failed attempts to force the journal
+     */
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    /**
+     * Forces remaining changes and closes the journal.
+     */
+    public void close() throws IOException {
+        closed = true;
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            segments.clear();
+        }
+    }
+
+    private void commit() {
+        long retryDelay = MIN_RETRY_DELAY;
+        while (!closed) {
+            try {
+                synchronized (monitor) {
+                    if (mode == Mode.GROUP) {
+                        while (!closed && requestedPosition <= durablePosition)
+                            monitor.wait();
+                    } else {
+                        monitor.wait(flushInterval);
+                    }
+                }
+                if (commitDelayMicros > 0)
+                    Thread.sleep(commitDelayMicros / 1000, (int) (commitDelayMicros % 1000) * 1000);
+                force();
+                if (failure != null) {
+                    LOGGER.log(Level.INFO, "Journal is forced again after {0} failures", failureCount.sum());
+                    failure = null;
+                }
+                retryDelay = MIN_RETRY_DELAY;
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | UncheckedIOException e) {
+                failureCount.increment();
+                if (failure == null)
+                    LOGGER.log(Level.SEVERE, "Failed to force the journal, retrying", e);
+                synchronized (monitor) {
+                    failure = e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause();
+                    monitor.notifyAll();
+                    try {
+                        monitor.wait(retryDelay);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Forces segments with records published since the previous call, and closes segments which are full
+     * and forced completely.
+     */
+    private void force() throws IOException {
+        long target = writtenPosition.get();
+        long from = durablePosition;
+        if (target == from)
+            return;
+        List<Segment> unforced = new ArrayList<>();
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                if (segment.index * segmentSize < target && (segment.index + 1) * segmentSize > from)
+                    unforced.add(segment);
+            }
+        }
+        for (Segment segment : unforced)
+            segment.buffer.force();
+        synchronized (segments) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment segment = segments.get(i);
+                if (segment != current && (segment.index + 1) * segmentSize <= target) {
+                    segments.remove(i);
+                    segment.channel.close();
+                }
+            }
+        }
+        synchronized (monitor) {
+            durablePosition = target;
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until records before the position are written, then publishes the record at the position.
+     */
+    private void publish(long position) {
+        while (writtenPosition.get() != position)
+            Thread.yield();
+        writtenPosition.set(position + RECORD_SIZE);
+    }
+
+    /**
+     * @return segment with the index, mapping new segments if the index is past the current one
+     */
+    private Segment segment(long index) throws IOException {
+        Segment segment = current;
+        if (segment.index == index)
+            return segment;
+        synchronized (segments) {
+            while (current.index < index) {
+                Segment next = openSegment(current.index + 1);
+                segments.add(next);
+                current = next;
+            }
+            for (Segment candidate : segments) {
+                if (candidate.index == index)
+                    return candidate;
+            }
+        }
+        throw new IllegalStateException("Journal segment " + index + " is already closed");
+    }
+
+    private Segment openSegment(long index) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(firstNumber + index), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new Segment(index, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private List<Long> segmentNumbers() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%016d%s", PREFIX, number, SUFFIX));
+    }
+
+    /**
+     * Checksum of a record which is never zero, so zeroed space at the end of a segment is never valid.
+     */
+    private static int checksum(int position, int id, long delta, long balance) {
+        long hash = CHECKSUM_SALT ^ position;
+        hash = mix(hash ^ id);
+        hash = mix(hash ^ delta);
+        hash = mix(hash ^ balance);
+        return (int) (hash ^ (hash >>> 32)) | 1;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
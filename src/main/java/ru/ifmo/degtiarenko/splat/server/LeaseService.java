@@ -0,0 +1,28 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+
+/**
+ * Leases on balances for client-side caches. A balance may be cached by a client until its lease expires;
+ * changes of accounts under a lease are announced by {@link #pollInvalidations(long)}, so clients which
+ * poll may drop the balance earlier.
+ */
+public interface LeaseService extends Remote {
+    /**
+     * Retrieves current balance with a lease on it. The lease is shorter for accounts changed recently
+     * and is zero for accounts which must not be cached.
+     *
+     * @param id          balance identifier
+     * @param maxDuration the longest acceptable lease in milliseconds
+     */
+    AmountLease leaseAmount(Integer id, long maxDuration) throws RemoteException, SQLException;
+
+    /**
+     * Retrieves identifiers of leased accounts changed since the position.
+     *
+     * @param since position returned by the previous poll, or a negative number to start from the current one
+     */
+    Invalidations pollInvalidations(long since) throws RemoteException;
+}
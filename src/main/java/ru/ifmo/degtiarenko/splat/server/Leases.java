@@ -0,0 +1,114 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lease bookkeeping of {@link LeaseService}.
+ * <p>
+ * Times of the last change and lease expiration times are kept per hashed identifier, so accounts sharing
+ * a slot only get shorter leases and extra invalidations. A lease is not longer than the time since
+ * the last change of the account, so frequently changed accounts are effectively not cached.
+ * Changes of accounts under a lease are appended to a ring of invalidations, which is polled by clients;
+ * a client which polls too rarely loses invalidations and must drop its whole cache.
+ */
+final class Leases {
+    private static final int SLOT_BITS = 16;
+    private static final int RING_SIZE = 1 << 16;
+
+    private final long maxDuration;
+    private final AtomicLongArray lastChange;
+    private final AtomicLongArray leasedUntil;
+    private final AtomicLong position;
+    private final int[] ring;
+    private final AtomicLongArray ringPositions;
+
+    /**
+     * @param maxDuration the longest lease in milliseconds
+     */
+    Leases(long maxDuration) {
+        this.maxDuration = maxDuration;
+        lastChange = new AtomicLongArray(1 << SLOT_BITS);
+        leasedUntil = new AtomicLongArray(1 << SLOT_BITS);
+        position = new AtomicLong();
+        ring = new int[RING_SIZE];
+        ringPositions = new AtomicLongArray(RING_SIZE);
+        for (int i = 0; i < RING_SIZE; i++)
+            ringPositions.set(i, -1);
+    }
+
+    /**
+     * Grants a lease. Must be called before the balance is read, so a change made after the read
+     * is always invalidated.
+     *
+     * @param requested the longest lease acceptable by the client in milliseconds
+     * @return lease in milliseconds, 0 if the balance must not be cached
+     */
+    long grant(int id, long requested) {
+        long now = now();
+        int slot = slot(id);
+        long changed = lastChange.get(slot);
+        long quiet = changed == 0 ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(now - changed);
+        long duration = Math.min(Math.min(requested, maxDuration), quiet);
+        if (duration <= 0)
+            return 0;
+        long until = now + TimeUnit.MILLISECONDS.toNanos(duration);
+        leasedUntil.accumulateAndGet(slot, until, Math::max);
+        return duration;
+    }
+
+    /**
+     * Records a change of the account. Must be called after the change is applied.
+     */
+    void changed(int id) {
+        long now = now();
+        int slot = slot(id);
+        lastChange.set(slot, now);
+        if (leasedUntil.get(slot) - now > 0) {
+            long next = position.getAndIncrement();
+            int index = (int) (next & (RING_SIZE - 1));
+            ring[index] = id;
+            ringPositions.set(index, next);
+        }
+    }
+
+    /**
+     * @param since position returned by the previous poll, negative to start from the current position
+     * @return identifiers of invalidated accounts since the position
+     */
+    Invalidations poll(long since) {
+        long end = position.get();
+        if (since < 0)
+            return new Invalidations(new int[0], end, true);
+        if (end - since > RING_SIZE)
+            return new Invalidations(new int[0], end, false);
+        int[] ids = new int[(int) Math.max(end - since, 0)];
+        int count = 0;
+        long next = since;
+        for (; next < end; next++) {
+            int index = (int) (next & (RING_SIZE - 1));
+            long written = ringPositions.get(index);
+            if (written < next)
+                break;
+            int id = ring[index];
+            if (written > next || ringPositions.get(index) != next)
+                return new Invalidations(new int[0], end, false);
+            ids[count++] = id;
+        }
+        return new Invalidations(Arrays.copyOf(ids, count), next, true);
+    }
+
+    private static int slot(int id) {
+        return AccountTable.hash(id) >>> (Integer.SIZE - SLOT_BITS);
+    }
+
+    /**
+     * @return current time in nanoseconds, never 0, which marks slots without changes
+     */
+    private static long now() {
+        long now = System.nanoTime();
+        return now == 0 ? 1 : now;
+    }
+}
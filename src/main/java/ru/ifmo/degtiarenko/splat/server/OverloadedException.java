@@ -0,0 +1,15 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.sql.SQLTransientException;
+
+/**
+ * Thrown when a request needs the database, but the database cannot take more work now. The request
+ * was not executed and may be retried later.
+ */
+public class OverloadedException extends SQLTransientException {
+    private static final long serialVersionUID = 1L;
+
+    public OverloadedException(String reason) {
+        super(reason);
+    }
+}
@@ -1,7 +1,13 @@
 package ru.ifmo.degtiarenko.splat.server;
 
+import ru.ifmo.degtiarenko.splat.cluster.ConsistentHashRing;
 import ru.ifmo.degtiarenko.splat.config.Config;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
@@ -9,37 +15,100 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.sql.SQLException;
-import java.util.Calendar;
 import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Implementation of <code>AccountService</code> interface via RMI and PostgreSQL.
+ * Optionally the same service is available through the pipelined {@link BinaryProtocol}.
+ * <p>
+ * In a cluster every service is one shard and serves only accounts mapped to it by
+ * the {@link ConsistentHashRing} of <code>cluster.shards</code>.
+ * <p>
+ * Over RMI the service also grants leases on balances for client-side caches, see {@link LeaseService},
+ * and answers aggregate and range queries over balances, see {@link BalanceQueryService}.
+ * Internals of the service are exposed over JMX by {@link ServiceMonitor}.
  */
-public class Service implements AccountService {
-    private static final int CACHE_MAX_SIZE = 4_000_000;
-
+public class Service implements AccountService, LeaseService, BalanceQueryService {
+    private static final Logger LOGGER = Logger.getLogger(Service.class.getName());
     private final DBConnection dbConnection;
+    private final DatabaseExecutor dbExecutor;
     private final Registry registry;
     private final String bindingName;
-    private ConcurrentMap<Integer, AtomicLong> cache;
+    private final BinaryServer binaryServer;
+    private final WriteBehindFlusher flusher;
+    private final CacheWarmer warmer;
+    private final Journal journal;
+    private final CacheSnapshot snapshot;
+    private final AccountTable cache;
+    private final AccountTable.AccountLoader loader;
+    private final AccountTable.AccountBatchLoader batchLoader;
 
-    //statistics
-    private AtomicInteger readRequestCount;
-    private AtomicInteger writeRequestCount;
-    private Calendar startTime;
+    private final Statistics statistics;
+    private final Leases leases;
+    private final BalanceQueries queries;
+    private final ConsistentHashRing ring;
+    private final int shard;
+    private final ObjectName monitorName;
 
     public Service(Config config) throws Exception {
-        dbConnection = DBConnection.createConnection(config);
-        cache = new ConcurrentHashMap<>();
-        resetStatistics();
-        registry = LocateRegistry.createRegistry(config.getServicePort());
-        Remote stub = UnicastRemoteObject.exportObject(this, config.getServicePort());
-        bindingName = config.getServiceBindingName();
-        registry.bind(config.getServiceBindingName(), stub);
+        if (config.getClusterShard().isEmpty()) {
+            ring = null;
+            shard = -1;
+        } else {
+            shard = config.getClusterShards().indexOf(config.getClusterShard());
+            if (shard < 0)
+                throw new IllegalArgumentException("cluster.shard is not listed in cluster.shards");
+            ring = new ConsistentHashRing(config.getClusterShards(), config.getClusterVirtualNodes());
+        }
+        if (config.isDeltaFlush() && config.getJournalMode() != Journal.Mode.OFF)
+            throw new IllegalArgumentException("cache.delta_flush cannot be used with the journal");
+        try {
+            dbConnection = DBConnection.createConnection(config);
+            journal = config.getJournalMode() != Journal.Mode.OFF ? openJournal(config) : null;
+            cache = new AccountTable(config.getCacheCapacity(), config.isDeltaFlush(), config.getCacheStorage());
+            cache.setUpdateListener(journal);
+            if (config.getHotThreshold() > 0 && config.getHotAccounts() > 0) {
+                if (journal == null)
+                    cache.enableHotAccounts(config.getHotThreshold(), config.getHotAccounts());
+                else
+                    LOGGER.log(Level.WARNING, "Hot accounts are disabled: striped counters bypass the journal");
+            }
+            dbExecutor = new DatabaseExecutor(config);
+            loader = id -> dbExecutor.call(() -> dbConnection.getAmount(id));
+            batchLoader = ids -> dbExecutor.call(() -> dbConnection.getAmounts(ids));
+            flusher = new WriteBehindFlusher(config, dbConnection, cache, journal);
+            warmer = new CacheWarmer(config, dbConnection, cache);
+            snapshot = config.getSnapshotFile().isEmpty() ? null : new CacheSnapshot(config, dbConnection, cache);
+            boolean restored = snapshot != null && snapshot.restore();
+            if (restored)
+                System.out.println("Cache is restored from the snapshot, warm-up is skipped");
+            else if (config.isWarmupBlocking())
+                warmer.run();
+            statistics = new Statistics(config.getStatLogInterval(), config.getStatHotKeys(),
+                    config.getStatHotKeysHalfLife());
+            leases = new Leases(config.getServiceLeaseDuration());
+            queries = new BalanceQueries(cache, dbConnection, id -> ring == null || ring.shardFor(id) == shard,
+                    config.getServiceQueryChunk());
+            cache.resetStatistics();
+            bindingName = config.getServiceBindingName();
+            registry = LocateRegistry.createRegistry(config.getServicePort());
+            Remote stub = UnicastRemoteObject.exportObject(this, config.getServicePort());
+            registry.bind(bindingName, stub);
+            monitorName = new ObjectName("ru.ifmo.degtiarenko.splat:type=Service,name="
+                    + ObjectName.quote(bindingName) + ",port=" + config.getServicePort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServiceMonitor(
+                    cache, flusher, dbConnection, dbExecutor, journal, this::resetStatistics), monitorName);
+            binaryServer = config.getServiceBinaryPort() > 0
+                    ? new BinaryServer(this, config.getServiceBinaryPort(), config.getServiceBinaryWorkers())
+                    : null;
+            if (!restored && !config.isWarmupBlocking())
+                startWarmup();
+        } catch (Exception e) {
+            closeStarted();
+            throw e;
+        }
     }
 
 
@@ -52,10 +121,14 @@ public class Service implements AccountService {
      * @throws SQLException    if failed to execute query to the database
      */
     public Long getAmount(Integer id) throws RemoteException, SQLException {
-        if (!cache.containsKey(id))
-            cache.put(id, dbConnection.getAmount(id));
-        readRequestCount.incrementAndGet();
-        return cache.get(id).longValue();
+        checkShard(id);
+        long startTime = System.nanoTime();
+        statistics.recordRead(id);
+        try {
+            return cache.getOrLoad(id, loader);
+        } finally {
+            statistics.record(Statistics.Method.GET_AMOUNT, startTime);
+        }
     }
 
     /**
@@ -67,16 +140,196 @@ public class Service implements AccountService {
      * @throws SQLException    if failed to execute query to the database
      */
     public void addAmount(Integer id, Long value) throws RemoteException, SQLException {
-        AtomicLong accountBefore;
-        if (!cache.containsKey(id))
-            cache.putIfAbsent(id, dbConnection.getAmount(id));
-        accountBefore = cache.get(id);
-        cache.put(id, new AtomicLong(value + accountBefore.longValue()));
-        if (cache.size() > CACHE_MAX_SIZE) {
-            dbConnection.updateData(cache);
-            cache.clear();
+        checkShard(id);
+        long startTime = System.nanoTime();
+        statistics.recordWrite(id);
+        try {
+            cache.addAndGet(id, value, loader);
+            leases.changed(id);
+            awaitJournal();
+        } finally {
+            statistics.record(Statistics.Method.ADD_AMOUNT, startTime);
+        }
+    }
+
+    /**
+     * Implementation of <code>AccountService</code> interface method.
+     *
+     * @param ids balance identifiers
+     * @return balances in the same order as <code>ids</code>
+     * @throws RemoteException if failed to invoke method remotely
+     * @throws SQLException    if failed to execute query to the database
+     */
+    public long[] getAmounts(int[] ids) throws RemoteException, SQLException {
+        for (int id : ids) {
+            checkShard(id);
+            statistics.recordRead(id);
+        }
+        long startTime = System.nanoTime();
+        try {
+            return cache.getOrLoadAll(ids, loader, batchLoader);
+        } finally {
+            statistics.record(Statistics.Method.GET_AMOUNTS, startTime);
+        }
+    }
+
+    /**
+     * Implementation of <code>AccountService</code> interface method.
+     *
+     * @param ids    balance identifiers
+     * @param values positive or negative values, which must be added to balances
+     * @throws RemoteException if failed to invoke method remotely
+     * @throws SQLException    if failed to execute query to the database
+     */
+    public void addAmounts(int[] ids, long[] values) throws RemoteException, SQLException {
+        if (ids.length != values.length)
+            throw new IllegalArgumentException("Amounts of identifiers and values differ");
+        for (int id : ids) {
+            checkShard(id);
+            statistics.recordWrite(id);
+        }
+        long startTime = System.nanoTime();
+        try {
+            try {
+                cache.addAll(ids, values, loader, batchLoader);
+            } finally {
+                for (int id : ids)
+                    leases.changed(id);
+            }
+            awaitJournal();
+        } finally {
+            statistics.record(Statistics.Method.ADD_AMOUNTS, startTime);
+        }
+    }
+
+    /**
+     * Implementation of <code>LeaseService</code> interface method.
+     *
+     * @param id          balance identifier
+     * @param maxDuration the longest acceptable lease in milliseconds
+     * @return account's balance with a lease
+     * @throws RemoteException if failed to invoke method remotely
+     * @throws SQLException    if failed to execute query to the database
+     */
+    public AmountLease leaseAmount(Integer id, long maxDuration) throws RemoteException, SQLException {
+        checkShard(id);
+        long startTime = System.nanoTime();
+        statistics.recordRead(id);
+        try {
+            long duration = leases.grant(id, maxDuration);
+            return new AmountLease(cache.getOrLoad(id, loader), duration);
+        } finally {
+            statistics.record(Statistics.Method.GET_AMOUNT, startTime);
+        }
+    }
+
+    /**
+     * Implementation of <code>LeaseService</code> interface method.
+     *
+     * @param since position returned by the previous poll, or a negative number to start from the current one
+     * @return identifiers of leased accounts changed since the position
+     */
+    public Invalidations pollInvalidations(long since) {
+        return leases.poll(since);
+    }
+
+    /**
+     * Implementation of <code>BalanceQueryService</code> interface method.
+     *
+     * @param fromId the smallest identifier of the range
+     * @param toId   the largest identifier of the range
+     * @return sum of balances in the range
+     * @throws RemoteException if failed to invoke method remotely
+     * @throws SQLException    if failed to execute query to the database
+     */
+    public long sumAmounts(int fromId, int toId) throws RemoteException, SQLException {
+        long startTime = System.nanoTime();
+        try {
+            return queries.sum(fromId, toId);
+        } finally {
+            statistics.record(Statistics.Method.SUM_AMOUNTS, startTime);
+        }
+    }
+
+    /**
+     * Implementation of <code>BalanceQueryService</code> interface method.
+     *
+     * @param fromId  the smallest identifier of the range
+     * @param toId    the largest identifier of the range
+     * @param maxSize the largest acceptable chunk
+     * @return balances in ascending order of identifiers
+     * @throws RemoteException if failed to invoke method remotely
+     * @throws SQLException    if failed to execute query to the database
+     */
+    public BalanceChunk getBalances(int fromId, int toId, int maxSize) throws RemoteException, SQLException {
+        long startTime = System.nanoTime();
+        try {
+            return queries.list(fromId, toId, maxSize);
+        } finally {
+            statistics.record(Statistics.Method.GET_BALANCES, startTime);
+        }
+    }
+
+    /**
+     * Implementation of <code>BalanceQueryService</code> interface method.
+     *
+     * @param fromId the smallest identifier of the range
+     * @param toId   the largest identifier of the range
+     * @param count  amount of accounts
+     * @return accounts with the largest balances, the largest first
+     * @throws RemoteException if failed to invoke method remotely
+     * @throws SQLException    if failed to execute query to the database
+     */
+    public BalanceChunk getTopBalances(int fromId, int toId, int count) throws RemoteException, SQLException {
+        long startTime = System.nanoTime();
+        try {
+            return queries.top(fromId, toId, count);
+        } finally {
+            statistics.record(Statistics.Method.GET_TOP_BALANCES, startTime);
+        }
+    }
+
+    /**
+     * Opens the journal and writes balances left in it by the previous run to the database.
+     * If that fails, the journal is closed again, because the caller never gets it to close.
+     */
+    private Journal openJournal(Config config) throws IOException, SQLException {
+        Journal journal = new Journal(config);
+        try {
+            AccountBatch recovered = journal.recover();
+            if (!recovered.isEmpty()) {
+                dbConnection.updateData(recovered);
+                System.out.println("Recovered balances of " + recovered.size() + " accounts from the journal");
+            }
+            journal.discardRecovered();
+        } catch (IOException | SQLException | RuntimeException e) {
+            try {
+                journal.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Rejects accounts of other shards, so a client with an outdated shard list cannot make two shards
+     * cache the same account.
+     */
+    private void checkShard(int id) throws WrongShardException {
+        if (ring != null && ring.shardFor(id) != shard)
+            throw new WrongShardException("Account " + id + " does not belong to this shard");
+    }
+
+    private void awaitJournal() throws RemoteException {
+        if (journal == null)
+            return;
+        try {
+            journal.awaitDurable();
+        } catch (IOException e) {
+            throw new RemoteException("Failed to write the journal", e);
         }
-        writeRequestCount.incrementAndGet();
     }
 
     /**
@@ -97,6 +350,9 @@ public class Service implements AccountService {
                 case "reset stat":
                     resetStatistics();
                     break;
+                case "show warmup":
+                    showWarmup();
+                    break;
                 default:
                     System.out.println("Unknown command");
                     break;
@@ -105,27 +361,132 @@ public class Service implements AccountService {
     }
 
     private void resetStatistics() {
-        readRequestCount = new AtomicInteger(0);
-        writeRequestCount = new AtomicInteger(0);
-        startTime = Calendar.getInstance();
+        statistics.reset();
+        cache.resetStatistics();
+        dbExecutor.resetStatistics();
+        flusher.resetStatistics();
+        dbConnection.resetStatistics();
     }
 
     private void showStatistics() {
-        long time = (Calendar.getInstance().getTimeInMillis() - startTime.getTimeInMillis()) / 1000;
-        System.out.println("Total amount of read requests: " + readRequestCount);
-        System.out.println("Total amount of write requests: " + writeRequestCount);
-        System.out.println("Average amount of read requests per second: " + readRequestCount.intValue() / time);
-        System.out.println("Average amount of write requests per second: " + writeRequestCount.intValue() / time);
+        statistics.print(System.out);
+        System.out.println("Amount of cached accounts: " + cache.size());
+        if (cache.getOffHeapBytes() > 0)
+            System.out.printf("Off-heap memory of the cache: %.1f MB%n", cache.getOffHeapBytes() / 1048576.0);
+        System.out.println("Amount of accounts waiting for flush: " + flusher.getDirtyCount());
+        System.out.println("Amount of hot accounts: " + cache.getHotCount());
+        System.out.printf("Cache hit ratio: %.4f (hits: %d, misses: %d, coalesced misses: %d, evictions: %d)%n",
+                cache.getHitRatio(), cache.getHitCount(), cache.getMissCount(), cache.getCoalescedCount(),
+                cache.getEvictionCount());
+        ConnectionPool pool = dbConnection.getConnectionPool();
+        System.out.printf("Database connections: %d of %d open, %d active, %d idle%n",
+                pool.getSize(), pool.getMaxSize(), pool.getActiveCount(), pool.getIdleCount());
+        System.out.printf("Database connection waits: %d of %d borrows, %.2f ms average, %d timeouts%n",
+                pool.getWaitCount(), pool.getBorrowCount(), pool.getAverageWaitMillis(), pool.getTimeoutCount());
+        System.out.printf("Database executor: %d of %d queued, %d of %d threads active, %d rejected, %d timed out%n",
+                dbExecutor.getQueueSize(), dbExecutor.getQueueCapacity(), dbExecutor.getActiveCount(),
+                dbExecutor.getThreadCount(), dbExecutor.getRejectedCount(), dbExecutor.getTimeoutCount());
+        if (journal != null) {
+            IOException failure = journal.getFailure();
+            System.out.printf("Journal: %s mode, %.1f MB appended, %d failures to force%s%n",
+                    journal.getMode().name().toLowerCase(), journal.getAppendedBytes() / 1048576.0,
+                    journal.getFailureCount(), failure != null ? ", failing: " + failure.getMessage() : "");
+        }
+    }
+
+    private void startWarmup() {
+        Thread thread = new Thread(() -> {
+            try {
+                warmer.run();
+            } catch (SQLException e) {
+                System.err.println("Cache warm-up failed: " + e.getMessage());
+            }
+        }, "cache-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void showWarmup() {
+        System.out.println("Warm-up mode: " + warmer.getMode().name().toLowerCase());
+        System.out.println("Warm-up is " + (warmer.isRunning() ? "running" : "not running"));
+        System.out.printf("Warm-up progress: %.1f%% (loaded: %d, skipped: %d, %d ms)%n",
+                warmer.getProgress() * 100, warmer.getLoadedCount(), warmer.getSkippedCount(),
+                warmer.getElapsedMillis());
+    }
+
+    /**
+     * Closes whatever the constructor managed to start before it failed, so a failed start leaves
+     * neither threads nor an exported port behind. Failures to close are only logged, because
+     * the cause of the failed start is more important.
+     */
+    private void closeStarted() {
+        try {
+            if (binaryServer != null)
+                binaryServer.close();
+            if (registry != null) {
+                try {
+                    registry.unbind(bindingName);
+                } catch (NotBoundException e) {
+                    // failed before binding
+                }
+                UnicastRemoteObject.unexportObject(registry, true);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close endpoints of the service", e);
+        }
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // failed before exporting
+        }
+        try {
+            if (monitorName != null && ManagementFactory.getPlatformMBeanServer().isRegistered(monitorName))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(monitorName);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to unregister the service monitor", e);
+        }
+        if (dbExecutor != null)
+            dbExecutor.close();
+        try {
+            if (flusher != null)
+                flusher.close();
+            if (snapshot != null)
+                snapshot.close();
+            if (journal != null)
+                journal.close();
+        } catch (IOException | SQLException e) {
+            LOGGER.log(Level.WARNING, "Failed to write balances of the failed service", e);
+        }
+        try {
+            if (dbConnection != null)
+                dbConnection.close();
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Failed to close database connections", e);
+        }
+        if (statistics != null)
+            statistics.close();
     }
 
-    private void shutdown() {
+    /**
+     * Stops accepting requests, writes remaining balances to the database and closes connections.
+     */
+    public void shutdown() {
         try {
-            dbConnection.updateData(cache);
+            if (binaryServer != null)
+                binaryServer.close();
             registry.unbind(bindingName);
             UnicastRemoteObject.unexportObject(this, true);
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(monitorName);
+            dbExecutor.close();
+            flusher.close();
+            if (snapshot != null)
+                snapshot.close();
+            if (journal != null)
+                journal.close();
             dbConnection.close();
+            statistics.close();
             System.out.println("Success.");
-        } catch (RemoteException | SQLException | NotBoundException e) {
+        } catch (IOException | SQLException | NotBoundException | JMException e) {
             System.out.println("Failed");
             System.err.println(e.getMessage());
         }
@@ -0,0 +1,240 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import ru.ifmo.degtiarenko.splat.stat.LatencyHistogram;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Implementation of {@link ServiceMonitorMBean} over components of a service.
+ */
+public class ServiceMonitor implements ServiceMonitorMBean {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private static final double P99 = 99;
+
+    private final AccountTable cache;
+    private final WriteBehindFlusher flusher;
+    private final DBConnection dbConnection;
+    private final DatabaseExecutor dbExecutor;
+    private final Journal journal;
+    private final Runnable reset;
+
+    /**
+     * @param journal journal of the service, may be <code>null</code>
+     * @param reset   resets all statistics of the service
+     */
+    public ServiceMonitor(AccountTable cache, WriteBehindFlusher flusher, DBConnection dbConnection,
+                          DatabaseExecutor dbExecutor, Journal journal, Runnable reset) {
+        this.cache = cache;
+        this.flusher = flusher;
+        this.dbConnection = dbConnection;
+        this.dbExecutor = dbExecutor;
+        this.journal = journal;
+        this.reset = reset;
+    }
+
+    @Override
+    public long getCacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getCacheCapacity() {
+        return cache.getCapacity();
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public double getHitRatio() {
+        return cache.getHitRatio();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public long getCoalescedMissCount() {
+        return cache.getCoalescedCount();
+    }
+
+    @Override
+    public long getDirtyCount() {
+        return cache.dirtyCount();
+    }
+
+    @Override
+    public int getHotAccountCount() {
+        return cache.getHotCount();
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return cache.getOffHeapBytes();
+    }
+
+    @Override
+    public long getSegmentLockWaitCount() {
+        return cache.getLockWaitCount();
+    }
+
+    @Override
+    public double getSegmentLockWaitMillis() {
+        return cache.getLockWaitNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flusher.getFlushCount();
+    }
+
+    @Override
+    public long getFlushFailureCount() {
+        return flusher.getFailureCount();
+    }
+
+    @Override
+    public long getFlushedRowCount() {
+        return flusher.getRowCount();
+    }
+
+    @Override
+    public int getLastFlushRowCount() {
+        return flusher.getLastRowCount();
+    }
+
+    @Override
+    public double getLastFlushMillis() {
+        return flusher.getLastFlushNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getAverageFlushMillis() {
+        return flusher.getAverageFlushNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxFlushMillis() {
+        return flusher.getMaxFlushNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getSelectCount() {
+        return latency(DBConnection.Operation.SELECT).getTotalCount();
+    }
+
+    @Override
+    public double getSelectMeanMillis() {
+        return latency(DBConnection.Operation.SELECT).getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getSelectP99Millis() {
+        return latency(DBConnection.Operation.SELECT).getValueAtPercentile(P99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getInsertCount() {
+        return latency(DBConnection.Operation.INSERT).getTotalCount();
+    }
+
+    @Override
+    public double getInsertMeanMillis() {
+        return latency(DBConnection.Operation.INSERT).getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getInsertP99Millis() {
+        return latency(DBConnection.Operation.INSERT).getValueAtPercentile(P99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getUpdateCount() {
+        return latency(DBConnection.Operation.UPDATE).getTotalCount();
+    }
+
+    @Override
+    public double getUpdateMeanMillis() {
+        return latency(DBConnection.Operation.UPDATE).getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getUpdateP99Millis() {
+        return latency(DBConnection.Operation.UPDATE).getValueAtPercentile(P99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getAccountLockWaitCount() {
+        return dbConnection.getLockWaitCount();
+    }
+
+    @Override
+    public double getAccountLockWaitMillis() {
+        return dbConnection.getLockWaitNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getConnectionWaitCount() {
+        return dbConnection.getConnectionPool().getWaitCount();
+    }
+
+    @Override
+    public double getAverageConnectionWaitMillis() {
+        return dbConnection.getConnectionPool().getAverageWaitMillis();
+    }
+
+    @Override
+    public int getActiveConnectionCount() {
+        return dbConnection.getConnectionPool().getActiveCount();
+    }
+
+    @Override
+    public int getExecutorQueueSize() {
+        return dbExecutor.getQueueSize();
+    }
+
+    @Override
+    public long getExecutorRejectedCount() {
+        return dbExecutor.getRejectedCount();
+    }
+
+    @Override
+    public long getExecutorTimeoutCount() {
+        return dbExecutor.getTimeoutCount();
+    }
+
+    @Override
+    public String getJournalFailure() {
+        IOException failure = journal != null ? journal.getFailure() : null;
+        return failure != null ? failure.toString() : null;
+    }
+
+    @Override
+    public long getJournalFailureCount() {
+        return journal != null ? journal.getFailureCount() : 0;
+    }
+
+    @Override
+    public void resetStatistics() {
+        reset.run();
+    }
+
+    @Override
+    public void flush() throws SQLException {
+        flusher.flushNow();
+    }
+
+    private LatencyHistogram latency(DBConnection.Operation operation) {
+        return dbConnection.getLatency(operation);
+    }
+}
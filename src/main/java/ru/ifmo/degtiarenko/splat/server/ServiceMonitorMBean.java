@@ -0,0 +1,100 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.sql.SQLException;
+
+/**
+ * JMX view of a running {@link Service}: its cache, write-behind flushes and database access.
+ * Durations are in milliseconds.
+ */
+public interface ServiceMonitorMBean {
+    long getCacheSize();
+
+    long getCacheCapacity();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRatio();
+
+    long getEvictionCount();
+
+    long getCoalescedMissCount();
+
+    long getDirtyCount();
+
+    int getHotAccountCount();
+
+    long getOffHeapBytes();
+
+    long getSegmentLockWaitCount();
+
+    double getSegmentLockWaitMillis();
+
+    long getFlushCount();
+
+    long getFlushFailureCount();
+
+    long getFlushedRowCount();
+
+    int getLastFlushRowCount();
+
+    double getLastFlushMillis();
+
+    double getAverageFlushMillis();
+
+    double getMaxFlushMillis();
+
+    long getSelectCount();
+
+    double getSelectMeanMillis();
+
+    double getSelectP99Millis();
+
+    long getInsertCount();
+
+    double getInsertMeanMillis();
+
+    double getInsertP99Millis();
+
+    long getUpdateCount();
+
+    double getUpdateMeanMillis();
+
+    double getUpdateP99Millis();
+
+    long getAccountLockWaitCount();
+
+    double getAccountLockWaitMillis();
+
+    long getConnectionWaitCount();
+
+    double getAverageConnectionWaitMillis();
+
+    int getActiveConnectionCount();
+
+    int getExecutorQueueSize();
+
+    long getExecutorRejectedCount();
+
+    long getExecutorTimeoutCount();
+
+    /**
+     * @return the last failure to force the journal, or <code>null</code> if the journal is healthy or off
+     */
+    String getJournalFailure();
+
+    long getJournalFailureCount();
+
+    /**
+     * Resets all statistics of the service, as <code>reset stat</code> does.
+     */
+    void resetStatistics();
+
+    /**
+     * Writes all dirty accounts to the database and waits for it.
+     *
+     * @throws SQLException if failed to write balances
+     */
+    void flush() throws SQLException;
+}
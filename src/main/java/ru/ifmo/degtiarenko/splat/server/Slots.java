@@ -0,0 +1,267 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static ru.ifmo.degtiarenko.splat.server.AccountTable.MAX_FREQUENCY;
+import static ru.ifmo.degtiarenko.splat.server.AccountTable.USED;
+
+/**
+ * Columns of one segment of {@link AccountTable}: identifiers, balances, flags, access frequencies
+ * and optionally deltas since the last flush. They are replaced all together on resize, so an optimistic
+ * reader always sees columns of the same length.
+ * <p>
+ * Columns are kept either in heap arrays or in direct buffers outside of the heap. Direct buffers are
+ * freed by the garbage collector together with their <code>Slots</code>, so a reader which still uses
+ * replaced columns never touches freed memory.
+ */
+abstract class Slots {
+    final int capacity;
+    final boolean trackDeltas;
+
+    Slots(int capacity, boolean trackDeltas) {
+        this.capacity = capacity;
+        this.trackDeltas = trackDeltas;
+    }
+
+    /**
+     * @return empty columns of the same kind
+     */
+    abstract Slots create(int capacity);
+
+    abstract int key(int index);
+
+    abstract void setKey(int index, int key);
+
+    abstract long value(int index);
+
+    abstract void setValue(int index, long value);
+
+    abstract byte flags(int index);
+
+    abstract void setFlags(int index, byte flags);
+
+    /**
+     * Access frequencies used by eviction. They are updated without locking, so a lost update
+     * only makes eviction slightly less precise.
+     */
+    abstract byte frequency(int index);
+
+    abstract void setFrequency(int index, byte frequency);
+
+    /**
+     * Sums of changes since the last flush, only if the table tracks deltas.
+     */
+    abstract long delta(int index);
+
+    abstract void setDelta(int index, long delta);
+
+    /**
+     * @return amount of memory outside of the heap taken by the columns
+     */
+    abstract long offHeapBytes();
+
+    int indexOf(int id, int hash) {
+        int mask = capacity - 1;
+        int index = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            if ((flags(index) & USED) == 0)
+                return -1;
+            if (key(index) == id)
+                return index;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    int freeIndex(int hash) {
+        int mask = capacity - 1;
+        int index = hash & mask;
+        while ((flags(index) & USED) != 0)
+            index = (index + 1) & mask;
+        return index;
+    }
+
+    void touch(int index) {
+        byte frequency = frequency(index);
+        if (frequency < MAX_FREQUENCY)
+            setFrequency(index, (byte) (frequency + 1));
+    }
+
+    /**
+     * Copies the entry from <code>index</code> of <code>from</code> to <code>to</code> of these columns.
+     */
+    void copy(Slots from, int index, int to) {
+        setKey(to, from.key(index));
+        setValue(to, from.value(index));
+        setFlags(to, from.flags(index));
+        setFrequency(to, from.frequency(index));
+        if (trackDeltas)
+            setDelta(to, from.delta(index));
+    }
+
+    static final class Heap extends Slots {
+        private final int[] keys;
+        private final long[] values;
+        private final byte[] flags;
+        private final byte[] frequencies;
+        private final long[] deltas;
+
+        Heap(int capacity, boolean trackDeltas) {
+            super(capacity, trackDeltas);
+            keys = new int[capacity];
+            values = new long[capacity];
+            flags = new byte[capacity];
+            frequencies = new byte[capacity];
+            deltas = trackDeltas ? new long[capacity] : null;
+        }
+
+        @Override
+        Slots create(int capacity) {
+            return new Heap(capacity, trackDeltas);
+        }
+
+        @Override
+        int key(int index) {
+            return keys[index];
+        }
+
+        @Override
+        void setKey(int index, int key) {
+            keys[index] = key;
+        }
+
+        @Override
+        long value(int index) {
+            return values[index];
+        }
+
+        @Override
+        void setValue(int index, long value) {
+            values[index] = value;
+        }
+
+        @Override
+        byte flags(int index) {
+            return flags[index];
+        }
+
+        @Override
+        void setFlags(int index, byte flags) {
+            this.flags[index] = flags;
+        }
+
+        @Override
+        byte frequency(int index) {
+            return frequencies[index];
+        }
+
+        @Override
+        void setFrequency(int index, byte frequency) {
+            frequencies[index] = frequency;
+        }
+
+        @Override
+        long delta(int index) {
+            return deltas[index];
+        }
+
+        @Override
+        void setDelta(int index, long delta) {
+            deltas[index] = delta;
+        }
+
+        @Override
+        long offHeapBytes() {
+            return 0;
+        }
+    }
+
+    static final class Direct extends Slots {
+        /**
+         * The largest capacity whose column of longs still fits into one buffer.
+         */
+        static final int MAX_CAPACITY = 1 << 27;
+
+        private final ByteBuffer keys;
+        private final ByteBuffer values;
+        private final ByteBuffer flags;
+        private final ByteBuffer frequencies;
+        private final ByteBuffer deltas;
+
+        Direct(int capacity, boolean trackDeltas) {
+            super(capacity, trackDeltas);
+            if (capacity > MAX_CAPACITY)
+                throw new IllegalStateException("Segment capacity " + capacity + " exceeds " + MAX_CAPACITY);
+            keys = allocate(capacity * Integer.BYTES);
+            values = allocate(capacity * Long.BYTES);
+            flags = allocate(capacity);
+            frequencies = allocate(capacity);
+            deltas = trackDeltas ? allocate(capacity * Long.BYTES) : null;
+        }
+
+        private static ByteBuffer allocate(int bytes) {
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        Slots create(int capacity) {
+            return new Direct(capacity, trackDeltas);
+        }
+
+        @Override
+        int key(int index) {
+            return keys.getInt(index * Integer.BYTES);
+        }
+
+        @Override
+        void setKey(int index, int key) {
+            keys.putInt(index * Integer.BYTES, key);
+        }
+
+        @Override
+        long value(int index) {
+            return values.getLong(index * Long.BYTES);
+        }
+
+        @Override
+        void setValue(int index, long value) {
+            values.putLong(index * Long.BYTES, value);
+        }
+
+        @Override
+        byte flags(int index) {
+            return flags.get(index);
+        }
+
+        @Override
+        void setFlags(int index, byte flags) {
+            this.flags.put(index, flags);
+        }
+
+        @Override
+        byte frequency(int index) {
+            return frequencies.get(index);
+        }
+
+        @Override
+        void setFrequency(int index, byte frequency) {
+            frequencies.put(index, frequency);
+        }
+
+        @Override
+        long delta(int index) {
+            return deltas.getLong(index * Long.BYTES);
+        }
+
+        @Override
+        void setDelta(int index, long delta) {
+            deltas.putLong(index * Long.BYTES, delta);
+        }
+
+        @Override
+        long offHeapBytes() {
+            return (long) capacity * (Integer.BYTES + Long.BYTES + 2 + (trackDeltas ? Long.BYTES : 0));
+        }
+    }
+}
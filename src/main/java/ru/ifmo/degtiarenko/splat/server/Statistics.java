@@ -0,0 +1,246 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import ru.ifmo.degtiarenko.splat.stat.HeavyHitters;
+import ru.ifmo.degtiarenko.splat.stat.LatencyHistogram;
+import ru.ifmo.degtiarenko.splat.stat.LatencyRecorder;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Request statistics of <code>AccountService</code> methods: totals since the last reset, rates over
+ * sliding windows and latency percentiles.
+ * <p>
+ * Request threads only record latencies into a {@link LatencyRecorder} per method. Once a second
+ * a background thread harvests recorders into per-second slots of a ring covering the longest window,
+ * and into the totals. A reset swaps recorders out, so requests in flight during the reset are counted
+ * after it.
+ * <p>
+ * Accounts of reads and writes are also counted by {@link HeavyHitters}, decayed on every harvest,
+ * to show which accounts get most of the recent requests.
+ */
+public class Statistics implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(Statistics.class.getName());
+    private static final int[] WINDOWS = {10, 60};
+    private static final int RING_SIZE = 60;
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    /**
+     * Measured method of <code>AccountService</code>.
+     */
+    public enum Method {
+        GET_AMOUNT("getAmount"), ADD_AMOUNT("addAmount"), GET_AMOUNTS("getAmounts"), ADD_AMOUNTS("addAmounts"),
+        SUM_AMOUNTS("sumAmounts"), GET_BALANCES("getBalances"), GET_TOP_BALANCES("getTopBalances");
+
+        private final String displayName;
+
+        Method(String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    private final LatencyRecorder[] recorders;
+    private final LatencyHistogram[] totals;
+    private final LatencyHistogram[][] ring;
+    private final long[] ringSeconds;
+    private final LatencyHistogram harvested;
+    private final ScheduledExecutorService scheduler;
+    private final HeavyHitters hotReads;
+    private final HeavyHitters hotWrites;
+    private final long hotKeysHalfLife;
+    private final double hotKeysDecay;
+    private long startTime;
+
+    /**
+     * @param logInterval     interval of writing statistics to the log in milliseconds, 0 to disable
+     * @param hotKeys         amount of the most requested accounts to show, 0 to disable
+     * @param hotKeysHalfLife time in seconds after which a request weighs half as much in the most requested accounts
+     */
+    public Statistics(long logInterval, int hotKeys, long hotKeysHalfLife) {
+        int methods = Method.values().length;
+        recorders = new LatencyRecorder[methods];
+        totals = new LatencyHistogram[methods];
+        ring = new LatencyHistogram[RING_SIZE][methods];
+        ringSeconds = new long[RING_SIZE];
+        harvested = new LatencyHistogram();
+        for (int i = 0; i < methods; i++) {
+            recorders[i] = new LatencyRecorder();
+            totals[i] = new LatencyHistogram();
+            for (int slot = 0; slot < RING_SIZE; slot++)
+                ring[slot][i] = new LatencyHistogram();
+        }
+        hotReads = hotKeys > 0 ? new HeavyHitters(hotKeys) : null;
+        hotWrites = hotKeys > 0 ? new HeavyHitters(hotKeys) : null;
+        this.hotKeysHalfLife = hotKeysHalfLife;
+        hotKeysDecay = Math.pow(0.5, 1.0 / Math.max(hotKeysHalfLife, 1));
+        startTime = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "statistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::harvest, 1, 1, TimeUnit.SECONDS);
+        if (logInterval > 0)
+            scheduler.scheduleAtFixedRate(this::log, logInterval, logInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a finished call.
+     *
+     * @param method    called method
+     * @param startTime value of <code>System.nanoTime()</code> when the call started
+     */
+    public void record(Method method, long startTime) {
+        recorders[method.ordinal()].record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Counts a read of the account among the most requested ones.
+     *
+     * @param id identifier of the account
+     */
+    public void recordRead(int id) {
+        if (hotReads != null)
+            hotReads.record(id);
+    }
+
+    /**
+     * Counts a change of the account among the most requested ones.
+     *
+     * @param id identifier of the account
+     */
+    public void recordWrite(int id) {
+        if (hotWrites != null)
+            hotWrites.record(id);
+    }
+
+    /**
+     * Drops everything recorded so far.
+     */
+    public synchronized void reset() {
+        for (LatencyRecorder recorder : recorders)
+            recorder.harvest(harvested);
+        harvested.reset();
+        for (int i = 0; i < totals.length; i++) {
+            totals[i].reset();
+            for (int slot = 0; slot < RING_SIZE; slot++)
+                ring[slot][i].reset();
+        }
+        if (hotReads != null) {
+            hotReads.reset();
+            hotWrites.reset();
+        }
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Prints totals, windowed rates and latency percentiles of every method.
+     *
+     * @param out stream to print to
+     */
+    public synchronized void print(PrintStream out) {
+        harvest();
+        long now = System.currentTimeMillis();
+        double elapsedSeconds = Math.max(now - startTime, 1) / 1000.0;
+        for (Method method : Method.values()) {
+            LatencyHistogram total = totals[method.ordinal()];
+            long count = total.getTotalCount();
+            out.printf("%s: %d requests, %.1f/s since reset", method.displayName, count, count / elapsedSeconds);
+            for (int window : WINDOWS)
+                out.printf(", %.1f/s last %d s", window(method, window, now).getTotalCount()
+                        / Math.min(window, elapsedSeconds), window);
+            out.println();
+            if (count > 0) {
+                LatencyHistogram recent = window(method, RING_SIZE, now);
+                out.printf("    latency last %d s, ms: %s%n", RING_SIZE, percentiles(recent));
+                out.printf("    latency since reset, ms: %s%n", percentiles(total));
+            }
+        }
+        if (hotReads != null) {
+            out.println(hotKeys("reads", hotReads));
+            out.println(hotKeys("writes", hotWrites));
+        }
+    }
+
+    /**
+     * Stops background harvesting and logging.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized void harvest() {
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % RING_SIZE);
+        if (ringSeconds[slot] != second) {
+            for (LatencyHistogram histogram : ring[slot])
+                histogram.reset();
+            ringSeconds[slot] = second;
+        }
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i].harvest(harvested);
+            ring[slot][i].add(harvested);
+            totals[i].add(harvested);
+            harvested.reset();
+        }
+        if (hotReads != null) {
+            hotReads.decay(hotKeysDecay);
+            hotWrites.decay(hotKeysDecay);
+        }
+    }
+
+    private LatencyHistogram window(Method method, int seconds, long now) {
+        long second = now / 1000;
+        LatencyHistogram result = new LatencyHistogram();
+        for (int slot = 0; slot < RING_SIZE; slot++) {
+            if (ringSeconds[slot] > second - seconds && ringSeconds[slot] <= second)
+                result.add(ring[slot][method.ordinal()]);
+        }
+        return result;
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        return String.format("p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+                histogram.getValueAtPercentile(50) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI,
+                histogram.getMax() / NANOS_PER_MILLI);
+    }
+
+    /**
+     * @return the most requested accounts with their estimated shares of recent requests
+     */
+    private String hotKeys(String requests, HeavyHitters hitters) {
+        StringBuilder line = new StringBuilder(String.format("Most requested accounts, share of %s with half-life %d s:",
+                requests, hotKeysHalfLife));
+        List<HeavyHitters.Entry> top = hitters.getTop();
+        long total = Math.max(hitters.getTotal(), 1);
+        for (HeavyHitters.Entry entry : top)
+            line.append(String.format(" %d %.1f%%,", entry.getId(), entry.getCount() * 100.0 / total));
+        if (top.isEmpty())
+            line.append(" none");
+        else
+            line.setLength(line.length() - 1);
+        return line.toString();
+    }
+
+    private synchronized void log() {
+        harvest();
+        long now = System.currentTimeMillis();
+        for (Method method : Method.values()) {
+            LatencyHistogram recent = window(method, WINDOWS[0], now);
+            if (recent.getTotalCount() > 0)
+                LOGGER.log(Level.INFO, "{0}: {1} requests in last {2} s, latency ms: {3}",
+                        new Object[]{method.displayName, recent.getTotalCount(), WINDOWS[0], percentiles(recent)});
+        }
+        if (hotReads != null) {
+            LOGGER.log(Level.INFO, hotKeys("reads", hotReads));
+            LOGGER.log(Level.INFO, hotKeys("writes", hotWrites));
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes changed balances from the cache to the database in background.
+ * <p>
+ * Request threads only mark accounts as dirty in the table. A single daemon thread flushes dirty accounts
+ * when the flush interval elapses, when the amount of dirty accounts reaches its limit or when the heap
+ * usage exceeds the configured ratio. Clean entries stay in the cache; after a flush the cache evicts clean
+ * entries from segments which outgrew their limit while they were dirty.
+ * <p>
+ * Balances are written in chunks, each in its own transaction. Accounts of failed chunks become dirty
+ * again and are written by the next flush, while accounts of written chunks become clean.
+ * <p>
+ * If the journal is enabled, every flush starts with a journal checkpoint, and journal segments before
+ * the checkpoint are deleted once all drained balances are written to the database.
+ * <p>
+ * If the cache tracks deltas, drained changes are added to balances in the database instead of
+ * overwriting them, also chunk by chunk, and cached balances of written chunks are refreshed from
+ * the database afterwards. Deltas of failed chunks are added back to changes made since the flush.
+ */
+public class WriteBehindFlusher implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindFlusher.class.getName());
+    private static final long CHECK_PERIOD_MILLIS = 100;
+
+    private final DBConnection dbConnection;
+    private final AccountTable cache;
+    private final Journal journal;
+    private final AccountBatch batch;
+    private final AccountBatch failed;
+    private final AccountBatch balances;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean flushRequested;
+    private final long flushInterval;
+    private final int dirtyLimit;
+    private final double memoryRatio;
+    private volatile long lastFlushTime;
+    private final AtomicLong flushCount;
+    private final AtomicLong failureCount;
+    private final AtomicLong flushNanos;
+    private final AtomicLong maxFlushNanos;
+    private final AtomicLong rowCount;
+    private volatile long lastFlushNanos;
+    private volatile int lastRowCount;
+
+    /**
+     * @param config       configuration of flush triggers
+     * @param dbConnection connection to write balances with
+     * @param cache        cache to take actual balances from
+     * @param journal      journal of the cache's changes, may be <code>null</code>
+     */
+    public WriteBehindFlusher(Config config, DBConnection dbConnection, AccountTable cache, Journal journal) {
+        this.dbConnection = dbConnection;
+        this.cache = cache;
+        this.journal = journal;
+        flushInterval = config.getFlushInterval();
+        dirtyLimit = config.getFlushDirtyLimit();
+        memoryRatio = config.getFlushMemoryRatio();
+        batch = new AccountBatch();
+        failed = new AccountBatch();
+        balances = new AccountBatch();
+        flushRequested = new AtomicBoolean(false);
+        flushCount = new AtomicLong();
+        failureCount = new AtomicLong();
+        flushNanos = new AtomicLong();
+        maxFlushNanos = new AtomicLong();
+        rowCount = new AtomicLong();
+        lastFlushTime = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "write-behind-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkTriggers, CHECK_PERIOD_MILLIS, CHECK_PERIOD_MILLIS,
+                TimeUnit.MILLISECONDS);
+        cache.setDirtyLimit(dirtyLimit, this::requestFlush);
+    }
+
+    /**
+     * Asks the background thread to flush as soon as possible.
+     */
+    public void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::checkTriggers);
+            } catch (RejectedExecutionException e) {
+                // flusher is closed, remaining entries are written by close()
+            }
+        }
+    }
+
+    /**
+     * Flushes all dirty accounts on the background thread and waits for it.
+     *
+     * @throws SQLException if failed to write balances or the flusher is closed
+     */
+    public void flushNow() throws SQLException {
+        try {
+            scheduler.submit(() -> {
+                flush();
+                return null;
+            }).get();
+        } catch (RejectedExecutionException e) {
+            throw new SQLException("Flusher is closed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the flush", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new SQLException("Flush failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return amount of accounts waiting to be written to the database
+     */
+    public long getDirtyCount() {
+        return cache.dirtyCount();
+    }
+
+    /**
+     * @return amount of flushes which wrote balances to the database
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * @return amount of flushes which failed to write balances
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * @return amount of balances written by all flushes
+     */
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    public int getLastRowCount() {
+        return lastRowCount;
+    }
+
+    public long getLastFlushNanos() {
+        return lastFlushNanos;
+    }
+
+    public long getMaxFlushNanos() {
+        return maxFlushNanos.get();
+    }
+
+    /**
+     * @return mean duration of flushes which wrote balances, in nanoseconds
+     */
+    public double getAverageFlushNanos() {
+        long count = flushCount.get();
+        return count == 0 ? 0 : (double) flushNanos.get() / count;
+    }
+
+    /**
+     * Resets flush counters and durations.
+     */
+    public void resetStatistics() {
+        flushCount.set(0);
+        failureCount.set(0);
+        flushNanos.set(0);
+        maxFlushNanos.set(0);
+        rowCount.set(0);
+    }
+
+    /**
+     * Stops background flushing and writes all remaining dirty accounts to the database.
+     *
+     * @throws SQLException if failed to write remaining balances
+     */
+    public void close() throws SQLException {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void checkTriggers() {
+        boolean requested = flushRequested.getAndSet(false);
+        if (requested
+                || System.currentTimeMillis() - lastFlushTime >= flushInterval
+                || cache.dirtyCount() >= dirtyLimit
+                || memoryUsage() >= memoryRatio) {
+            try {
+                flush();
+            } catch (SQLException e) {
+                LOGGER.log(Level.WARNING, "Failed to flush dirty accounts", e);
+            }
+        }
+    }
+
+    private void flush() throws SQLException {
+        long startTime = System.nanoTime();
+        lastFlushTime = System.currentTimeMillis();
+        long checkpoint = journal != null ? journal.checkpoint() : 0;
+        batch.clear();
+        failed.clear();
+        cache.drainDirty(batch);
+        if (!batch.isEmpty()) {
+            balances.clear();
+            try {
+                if (cache.isTrackingDeltas())
+                    dbConnection.addData(batch, balances, failed);
+                else
+                    dbConnection.updateData(batch, failed);
+            } catch (SQLException e) {
+                if (cache.isTrackingDeltas())
+                    cache.refresh(balances);
+                cache.finishFlush(failed);
+                rowCount.addAndGet(batch.size() - failed.size());
+                failureCount.incrementAndGet();
+                throw e;
+            }
+            if (cache.isTrackingDeltas())
+                cache.refresh(balances);
+            cache.finishFlush(failed);
+            long duration = System.nanoTime() - startTime;
+            flushCount.incrementAndGet();
+            flushNanos.addAndGet(duration);
+            maxFlushNanos.accumulateAndGet(duration, Math::max);
+            rowCount.addAndGet(batch.size());
+            lastFlushNanos = duration;
+            lastRowCount = batch.size();
+        }
+        if (checkpoint > 0)
+            journal.release(checkpoint);
+        cache.evictExcess();
+    }
+
+    private static double memoryUsage() {
+        Runtime runtime = Runtime.getRuntime();
+        return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+    }
+}
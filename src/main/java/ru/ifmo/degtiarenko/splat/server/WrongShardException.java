@@ -0,0 +1,15 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown when a request reaches a shard which does not own the account, e.g. from a client with an outdated
+ * list of shards. The request was not executed.
+ */
+public class WrongShardException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public WrongShardException(String reason) {
+        super(reason);
+    }
+}
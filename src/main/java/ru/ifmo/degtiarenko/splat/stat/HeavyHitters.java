@@ -0,0 +1,202 @@
+package ru.ifmo.degtiarenko.splat.stat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the most frequent keys of a stream in constant memory: a Count-Min sketch estimates the frequency
+ * of every key, and a small table of candidates keeps keys with the largest estimates.
+ * <p>
+ * Counts decay exponentially by {@link #decay(double)}, so the tracker reflects recent traffic rather than
+ * everything since the start. Recording takes one atomic increment per row of the sketch; a candidate is
+ * offered to the table only if its estimate beats the smallest tracked one, and only if the table is not
+ * locked at the moment, because a frequent key will be offered again soon.
+ */
+public class HeavyHitters {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+    private static final int CANDIDATES_PER_KEY = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final AtomicLongArray counters;
+    private final LongAdder total;
+    private final int count;
+    private final ReentrantLock lock;
+    private final int[] ids;
+    private final long[] counts;
+    private int size;
+    private volatile long threshold;
+
+    /**
+     * Tracked key with its estimated decayed count.
+     */
+    public static final class Entry {
+        private final int id;
+        private final long count;
+
+        Entry(int id, long count) {
+            this.id = id;
+            this.count = count;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * @param count amount of keys to report; a few times more candidates are tracked to make the top stable
+     */
+    public HeavyHitters(int count) {
+        counters = new AtomicLongArray(DEPTH * WIDTH);
+        total = new LongAdder();
+        this.count = count;
+        lock = new ReentrantLock();
+        ids = new int[count * CANDIDATES_PER_KEY];
+        counts = new long[count * CANDIDATES_PER_KEY];
+    }
+
+    /**
+     * Counts one occurrence of the key.
+     *
+     * @param id key, e.g. an account identifier
+     */
+    public void record(int id) {
+        total.increment();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++)
+            estimate = Math.min(estimate, counters.incrementAndGet(row * WIDTH + column(id, row)));
+        if (estimate > threshold && lock.tryLock()) {
+            try {
+                offer(id, estimate);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Multiplies all counts by the factor, e.g. once a second by <code>0.5^(1/halfLife)</code>.
+     * Occurrences recorded concurrently may be decayed or not.
+     *
+     * @param factor number from 0 to 1
+     */
+    public void decay(double factor) {
+        for (int i = 0; i < counters.length(); i++) {
+            if (counters.get(i) != 0)
+                counters.updateAndGet(i, value -> (long) (value * factor));
+        }
+        long sum = total.sum();
+        total.add((long) (sum * factor) - sum);
+        lock.lock();
+        try {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                long decayed = (long) (counts[i] * factor);
+                if (decayed > 0) {
+                    ids[kept] = ids[i];
+                    counts[kept++] = decayed;
+                }
+            }
+            size = kept;
+            updateThreshold();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return keys with the largest estimated counts, the largest first
+     */
+    public List<Entry> getTop() {
+        List<Entry> top = new ArrayList<>(count);
+        lock.lock();
+        try {
+            boolean[] taken = new boolean[size];
+            for (int n = 0; n < Math.min(count, size); n++) {
+                int best = -1;
+                for (int i = 0; i < size; i++) {
+                    if (!taken[i] && (best < 0 || counts[i] > counts[best]))
+                        best = i;
+                }
+                taken[best] = true;
+                top.add(new Entry(ids[best], counts[best]));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return top;
+    }
+
+    /**
+     * @return decayed count of all occurrences, to compare counts of keys with
+     */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * Forgets all counts.
+     */
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++)
+            counters.set(i, 0);
+        total.reset();
+        lock.lock();
+        try {
+            size = 0;
+            updateThreshold();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void offer(int id, long estimate) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                counts[i] = Math.max(counts[i], estimate);
+                updateThreshold();
+                return;
+            }
+        }
+        if (size < ids.length) {
+            ids[size] = id;
+            counts[size++] = estimate;
+        } else {
+            int min = 0;
+            for (int i = 1; i < size; i++) {
+                if (counts[i] < counts[min])
+                    min = i;
+            }
+            ids[min] = id;
+            counts[min] = estimate;
+        }
+        updateThreshold();
+    }
+
+    /**
+     * Sets the estimate a new key must beat: zero while the table has room, the smallest count otherwise.
+     */
+    private void updateThreshold() {
+        if (size < ids.length) {
+            threshold = 0;
+            return;
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++)
+            min = Math.min(min, counts[i]);
+        threshold = min;
+    }
+
+    private static int column(int id, int row) {
+        int h = id * SEEDS[row];
+        return (h ^ (h >>> 16)) & (WIDTH - 1);
+    }
+}
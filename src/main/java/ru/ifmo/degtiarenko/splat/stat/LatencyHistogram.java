@@ -0,0 +1,164 @@
+package ru.ifmo.degtiarenko.splat.stat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, usually latencies in nanoseconds, with bounded relative error.
+ * <p>
+ * Buckets are log-linear, as in HdrHistogram: values below 128 have their own buckets, every following
+ * power of two is split into 64 buckets of equal width, so a value is reported with at most 1.6% error.
+ * Values up to 2<sup>44</sup> (about 4.9 hours in nanoseconds) are distinguished, larger ones are counted
+ * in the last bucket. Recording is thread-safe and does not allocate.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+    private static final int MAX_EXPONENT = 43;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Records one value.
+     *
+     * @param value value to record, negative values are recorded as zero
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(value));
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Adds all values recorded by another histogram.
+     *
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0)
+                counts.addAndGet(i, count);
+        }
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long current;
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+            // retry
+        }
+    }
+
+    /**
+     * Removes all values. Not atomic with respect to concurrent recording.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts.set(i, 0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = getTotalCount();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * @param percentile percentile from 0 to 100
+     * @return the largest value of the bucket containing the percentile, 0 if the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getTotalCount();
+        if (total == 0)
+            return 0;
+        long rank = Math.max((long) Math.ceil(Math.min(percentile, 100) / 100 * total), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Number of buckets, for serialization with {@link #getCount(int)} and {@link #addCount(int, long)}.
+     */
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Adds values directly to a bucket, for example when merging a histogram read from a file.
+     *
+     * @param bucket index of the bucket
+     * @param count  amount of values
+     */
+    public void addCount(int bucket, long count) {
+        counts.addAndGet(bucket, count);
+    }
+
+    /**
+     * Adds to the sum and the maximum of values added by {@link #addCount(int, long)}.
+     */
+    public void addSummary(long valueSum, long valueMax) {
+        sum.addAndGet(valueSum);
+        long current;
+        while (valueMax > (current = max.get()) && !max.compareAndSet(current, valueMax)) {
+            // retry
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKET_COUNT - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < LINEAR_LIMIT)
+            return index;
+        int exponent = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+        int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) subBucket << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,75 @@
+package ru.ifmo.degtiarenko.splat.stat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records latencies from many threads and hands them over to a reader interval by interval.
+ * <p>
+ * Writers are spread over stripes by thread, every stripe has an active and an inactive histogram.
+ * The reader swaps them and waits, with a writer-reader phaser, until writers which might still record
+ * into the old active histogram leave it. So no sample is lost or counted twice, and writers never block.
+ */
+public class LatencyRecorder {
+    private final Stripe[] stripes;
+    private final int mask;
+
+    public LatencyRecorder() {
+        int count = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 1) * 2 - 1) * 2;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
+            stripes[i] = new Stripe();
+        mask = count - 1;
+    }
+
+    /**
+     * Records one latency.
+     *
+     * @param value latency, usually in nanoseconds
+     */
+    public void record(long value) {
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        long epoch = stripe.startEpoch.getAndIncrement();
+        try {
+            stripe.active.record(value);
+        } finally {
+            (epoch < 0 ? stripe.oddEndEpoch : stripe.evenEndEpoch).getAndIncrement();
+        }
+    }
+
+    /**
+     * Moves all latencies recorded since the previous call into <code>target</code>.
+     *
+     * @param target histogram to add latencies to
+     */
+    public synchronized void harvest(LatencyHistogram target) {
+        for (Stripe stripe : stripes) {
+            LatencyHistogram recorded = stripe.active;
+            stripe.active = stripe.inactive;
+            stripe.flipPhase();
+            target.add(recorded);
+            recorded.reset();
+            stripe.inactive = recorded;
+        }
+    }
+
+    private static final class Stripe {
+        final AtomicLong startEpoch = new AtomicLong();
+        final AtomicLong evenEndEpoch = new AtomicLong();
+        final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+        volatile LatencyHistogram active = new LatencyHistogram();
+        LatencyHistogram inactive = new LatencyHistogram();
+
+        /**
+         * Starts a new phase and waits until all writers which entered the previous one leave it.
+         */
+        void flipPhase() {
+            boolean nextPhaseIsEven = startEpoch.get() < 0;
+            long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+            (nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).set(initialStartValue);
+            long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+            AtomicLong previousEndEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+            while (previousEndEpoch.get() != startValueAtFlip)
+                Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package ru.ifmo.degtiarenko.splat.client;
+
+import org.junit.After;
+import org.junit.Test;
+import ru.ifmo.degtiarenko.splat.cluster.ConsistentHashRing;
+import ru.ifmo.degtiarenko.splat.cluster.ShardedAccountService;
+import ru.ifmo.degtiarenko.splat.config.Config;
+import ru.ifmo.degtiarenko.splat.server.AccountService;
+import ru.ifmo.degtiarenko.splat.server.BinaryServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests of {@link Client#connectService}: a binary protocol client of a cluster reaches every shard at its
+ * port of <code>cluster.binary_ports</code> and sends each account to the shard chosen by the ring.
+ */
+public class ClientTest {
+    private static final List<String> SHARDS = Arrays.asList("localhost:1099", "localhost:1100", "localhost:1101");
+
+    private final List<BinaryServer> servers = new ArrayList<>();
+    private final List<Shard> shards = new ArrayList<>();
+
+    @After
+    public void stopServers() throws Exception {
+        for (BinaryServer server : servers)
+            server.close();
+    }
+
+    @Test
+    public void routesBinaryRequestsToShards() throws Exception {
+        StringBuilder ports = new StringBuilder();
+        for (int i = 0; i < SHARDS.size(); i++) {
+            Shard shard = new Shard();
+            BinaryServer server = new BinaryServer(shard, 0, 2);
+            shards.add(shard);
+            servers.add(server);
+            ports.append(i == 0 ? "" : ",").append(server.getPort());
+        }
+        Properties properties = properties();
+        properties.setProperty("cluster.binary_ports", ports.toString());
+        Config config = new Config(properties);
+
+        ShardedAccountService service = (ShardedAccountService) Client.connectService(config);
+        try {
+            for (int id = 0; id < 300; id++)
+                service.addAmount(id, 1L);
+            int[] ids = new int[300];
+            long[] values = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = 300 + i;
+                values[i] = 1;
+            }
+            service.addAmounts(ids, values);
+        } finally {
+            service.close();
+        }
+
+        ConsistentHashRing ring = new ConsistentHashRing(SHARDS, config.getClusterVirtualNodes());
+        for (int id = 0; id < 600; id++) {
+            for (int shard = 0; shard < shards.size(); shard++)
+                assertEquals("Account " + id + " on shard " + shard, shard == ring.shardFor(id),
+                        shards.get(shard).ids.contains(id));
+        }
+        for (Shard shard : shards)
+            assertFalse(shard.ids.isEmpty());
+    }
+
+    @Test
+    public void rejectsBinaryClusterWithoutBinaryPorts() throws Exception {
+        for (String ports : new String[]{"", "7001,7002"}) {
+            Properties properties = properties();
+            properties.setProperty("cluster.binary_ports", ports);
+            try {
+                new Config(properties);
+                fail("Accepted cluster.binary_ports=" + ports);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static Properties properties() {
+        Properties properties = new Properties();
+        properties.setProperty("service.port", "1099");
+        properties.setProperty("client.rcount", "1");
+        properties.setProperty("client.wcount", "1");
+        properties.setProperty("client.range", "0-1000");
+        properties.setProperty("client.protocol", "binary");
+        properties.setProperty("cluster.shards", String.join(",", SHARDS));
+        return properties;
+    }
+
+    /**
+     * Shard which remembers accounts it was asked to change.
+     */
+    private static class Shard implements AccountService {
+        private final Set<Integer> ids = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public Long getAmount(Integer id) {
+            return 0L;
+        }
+
+        @Override
+        public void addAmount(Integer id, Long value) {
+            ids.add(id);
+        }
+
+        @Override
+        public long[] getAmounts(int[] ids) {
+            return new long[ids.length];
+        }
+
+        @Override
+        public void addAmounts(int[] ids, long[] values) {
+            for (int id : ids)
+                this.ids.add(id);
+        }
+    }
+}
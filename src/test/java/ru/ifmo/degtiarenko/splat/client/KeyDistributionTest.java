@@ -0,0 +1,77 @@
+package ru.ifmo.degtiarenko.splat.client;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests of {@link KeyDistribution}: parsing of <code>client.distribution</code> and shapes of sampled
+ * positions.
+ */
+public class KeyDistributionTest {
+    private static final int SIZE = 1000;
+    private static final int SAMPLES = 200_000;
+
+    @Test
+    public void rejectsUnknownAndWrongSpecs() {
+        for (String spec : new String[]{"gaussian", "uniform:1", "zipfian", "zipfian:0", "zipfian:x",
+                "hotspot:0.9", "hotspot:1.5:0.1", "hotspot:0.9:0"}) {
+            try {
+                KeyDistribution.parse(spec, SIZE);
+                fail("Accepted " + spec);
+            } catch (BadArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void samplesUniformly() throws Exception {
+        int[] counts = sample(KeyDistribution.parse(" Uniform ", SIZE));
+        for (int count : counts)
+            assertEquals(SAMPLES / SIZE, count, SAMPLES / SIZE * 0.5);
+    }
+
+    @Test
+    public void walksSequentially() throws Exception {
+        KeyDistribution distribution = KeyDistribution.parse("sequential", 3);
+        Random random = new Random(1);
+        for (int i = 0; i < 7; i++)
+            assertEquals(i % 3, distribution.nextIndex(random));
+    }
+
+    @Test
+    public void sendsHotTrafficToHotKeys() throws Exception {
+        int[] counts = sample(KeyDistribution.parse("hotspot:0.9:0.05", SIZE));
+        long hot = 0;
+        for (int i = 0; i < SIZE / 20; i++)
+            hot += counts[i];
+        assertEquals(0.9, (double) hot / SAMPLES, 0.01);
+    }
+
+    @Test
+    public void favoursFirstKeysByZipfLaw() throws Exception {
+        int[] counts = sample(KeyDistribution.parse("zipfian:1.0", SIZE));
+        double harmonic = 0;
+        for (int i = 1; i <= SIZE; i++)
+            harmonic += 1.0 / i;
+        for (int rank = 1; rank <= 4; rank++)
+            assertEquals(1 / (rank * harmonic), (double) counts[rank - 1] / SAMPLES, 0.005);
+        assertTrue(counts[0] > counts[9] * 5);
+    }
+
+    /**
+     * @return amount of samples of every position; fails if a position is out of range
+     */
+    private static int[] sample(KeyDistribution distribution) {
+        Random random = new Random(42);
+        int[] counts = new int[SIZE];
+        for (int i = 0; i < SAMPLES; i++)
+            counts[distribution.nextIndex(random)]++;
+        return counts;
+    }
+}
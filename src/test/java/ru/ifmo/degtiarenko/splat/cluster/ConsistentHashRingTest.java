@@ -0,0 +1,66 @@
+package ru.ifmo.degtiarenko.splat.cluster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of {@link ConsistentHashRing}: the mapping depends on names only, parts of shards are nearly
+ * equal, and a new shard takes accounts only from others without moving the rest.
+ */
+public class ConsistentHashRingTest {
+    private static final int ACCOUNTS = 100_000;
+    private static final List<String> SHARDS = Arrays.asList("db1:1099", "db2:1099", "db3:1099");
+
+    @Test
+    public void mapsAccountsByShardNames() {
+        ConsistentHashRing ring = new ConsistentHashRing(SHARDS, 100);
+        List<String> reversed = Arrays.asList("db3:1099", "db2:1099", "db1:1099");
+        ConsistentHashRing reversedRing = new ConsistentHashRing(reversed, 100);
+        for (int id = 0; id < ACCOUNTS; id++)
+            assertEquals(SHARDS.get(ring.shardFor(id)), reversed.get(reversedRing.shardFor(id)));
+    }
+
+    @Test
+    public void splitsAccountsNearlyEqually() {
+        ConsistentHashRing ring = new ConsistentHashRing(SHARDS, 100);
+        int[] counts = new int[SHARDS.size()];
+        for (int id = 0; id < ACCOUNTS; id++)
+            counts[ring.shardFor(id)]++;
+        for (int count : counts)
+            assertEquals(ACCOUNTS / SHARDS.size(), count, ACCOUNTS / SHARDS.size() * 0.2);
+    }
+
+    @Test
+    public void movesOnlyAccountsOfNewShard() {
+        ConsistentHashRing ring = new ConsistentHashRing(SHARDS, 100);
+        List<String> grown = Arrays.asList("db1:1099", "db2:1099", "db3:1099", "db4:1099");
+        ConsistentHashRing grownRing = new ConsistentHashRing(grown, 100);
+        int moved = 0;
+        for (int id = 0; id < ACCOUNTS; id++) {
+            int shard = grownRing.shardFor(id);
+            if (shard != ring.shardFor(id)) {
+                assertEquals("account " + id + " moved between old shards", 3, shard);
+                moved++;
+            }
+        }
+        assertEquals(ACCOUNTS / grown.size(), moved, ACCOUNTS / grown.size() * 0.2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRing() {
+        new ConsistentHashRing(Collections.emptyList(), 100);
+    }
+
+    @Test
+    public void mapsEverythingToSingleShard() {
+        ConsistentHashRing ring = new ConsistentHashRing(Collections.singletonList("db1:1099"), 1);
+        assertEquals(1, ring.getShardCount());
+        assertTrue(ring.shardFor(Integer.MIN_VALUE) == 0 && ring.shardFor(Integer.MAX_VALUE) == 0);
+    }
+}
@@ -0,0 +1,139 @@
+package ru.ifmo.degtiarenko.splat.cluster;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.degtiarenko.splat.server.BalanceChunk;
+import ru.ifmo.degtiarenko.splat.server.BalanceQueryService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Unit tests of {@link ShardedBalanceQueryService} over in-memory shards which split accounts by
+ * a {@link ConsistentHashRing}, compared with the same queries over all accounts at once.
+ */
+public class ShardedBalanceQueryServiceTest {
+    private static final List<String> SHARDS = Arrays.asList("a:1", "b:1", "c:1");
+
+    private final TreeMap<Integer, Long> accounts = new TreeMap<>();
+    private ShardedBalanceQueryService service;
+
+    @Before
+    public void createShards() {
+        ConsistentHashRing ring = new ConsistentHashRing(SHARDS, 16);
+        List<TreeMap<Integer, Long>> shardAccounts = new ArrayList<>();
+        for (int shard = 0; shard < SHARDS.size(); shard++)
+            shardAccounts.add(new TreeMap<>());
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            int id = random.nextInt(5000);
+            long amount = random.nextInt(100);
+            accounts.put(id, amount);
+            shardAccounts.get(ring.shardFor(id)).put(id, amount);
+        }
+        List<BalanceQueryService> shards = new ArrayList<>();
+        for (TreeMap<Integer, Long> shard : shardAccounts)
+            shards.add(new Shard(shard));
+        service = new ShardedBalanceQueryService(shards);
+    }
+
+    @After
+    public void close() {
+        service.close();
+    }
+
+    @Test
+    public void addsUpSums() throws Exception {
+        assertEquals(new Shard(accounts).sumAmounts(100, 3000), service.sumAmounts(100, 3000));
+    }
+
+    @Test
+    public void listsBalancesOfAllShardsInChunks() throws Exception {
+        List<Integer> ids = new ArrayList<>();
+        List<Long> amounts = new ArrayList<>();
+        BalanceChunk chunk = service.getBalances(100, 3000, 7);
+        while (true) {
+            for (int i = 0; i < chunk.size(); i++) {
+                ids.add(chunk.getId(i));
+                amounts.add(chunk.getAmount(i));
+            }
+            if (!chunk.hasMore())
+                break;
+            chunk = service.getBalances(chunk.getNext(), 3000, 7);
+        }
+        Map<Integer, Long> expected = accounts.subMap(100, true, 3000, true);
+        assertEquals(new ArrayList<>(expected.keySet()), ids);
+        assertEquals(new ArrayList<>(expected.values()), amounts);
+    }
+
+    @Test
+    public void mergesTopBalances() throws Exception {
+        BalanceChunk expected = new Shard(accounts).getTopBalances(100, 3000, 20);
+        BalanceChunk top = service.getTopBalances(100, 3000, 20);
+        assertFalse(top.hasMore());
+        assertEquals(expected.size(), top.size());
+        for (int i = 0; i < top.size(); i++) {
+            assertEquals(expected.getId(i), top.getId(i));
+            assertEquals(expected.getAmount(i), top.getAmount(i));
+        }
+    }
+
+    /**
+     * Shard answering queries over its accounts the way the service does.
+     */
+    private static final class Shard implements BalanceQueryService {
+        private final TreeMap<Integer, Long> accounts;
+
+        Shard(TreeMap<Integer, Long> accounts) {
+            this.accounts = accounts;
+        }
+
+        @Override
+        public long sumAmounts(int fromId, int toId) {
+            long sum = 0;
+            for (long amount : accounts.subMap(fromId, true, toId, true).values())
+                sum += amount;
+            return sum;
+        }
+
+        @Override
+        public BalanceChunk getBalances(int fromId, int toId, int maxSize) {
+            List<Map.Entry<Integer, Long>> balances = new ArrayList<>();
+            for (Map.Entry<Integer, Long> entry : accounts.subMap(fromId, true, toId, true).entrySet()) {
+                if (balances.size() == maxSize)
+                    break;
+                balances.add(entry);
+            }
+            int last = balances.isEmpty() ? toId : balances.get(balances.size() - 1).getKey();
+            boolean more = balances.size() == maxSize && last < toId;
+            return toChunk(balances, more, more ? last + 1 : 0);
+        }
+
+        @Override
+        public BalanceChunk getTopBalances(int fromId, int toId, int count) {
+            List<Map.Entry<Integer, Long>> balances =
+                    new ArrayList<>(accounts.subMap(fromId, true, toId, true).entrySet());
+            balances.sort((a, b) -> a.getValue().equals(b.getValue())
+                    ? Integer.compare(a.getKey(), b.getKey()) : Long.compare(b.getValue(), a.getValue()));
+            return toChunk(balances.subList(0, Math.min(count, balances.size())), false, 0);
+        }
+
+        private static BalanceChunk toChunk(List<Map.Entry<Integer, Long>> balances, boolean more, int next) {
+            int[] ids = new int[balances.size()];
+            long[] amounts = new long[balances.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = balances.get(i).getKey();
+                amounts[i] = balances.get(i).getValue();
+            }
+            return new BalanceChunk(ids, amounts, more, next);
+        }
+    }
+}
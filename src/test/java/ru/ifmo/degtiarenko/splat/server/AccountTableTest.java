@@ -0,0 +1,164 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of {@link AccountTable}: single-flight loads, dirty tracking, and loads racing with flushes
+ * and evictions, driven step by step by latches in loaders.
+ */
+public class AccountTableTest {
+    private static final AccountTable.AccountLoader NO_LOADS = id -> {
+        throw new AssertionError("Account " + id + " must be cached");
+    };
+
+    @Test
+    public void coalescesConcurrentMisses() throws Exception {
+        AccountTable table = new AccountTable(1000);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        AccountTable.AccountLoader loader = id -> {
+            loads.incrementAndGet();
+            await(release);
+            return 42;
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int i = 0; i < futures.length; i++)
+                futures[i] = executor.submit(() -> table.getOrLoad(7, loader));
+            while (table.getCoalescedCount() < futures.length - 1)
+                Thread.yield();
+            release.countDown();
+            for (Future<?> future : futures)
+                assertEquals(42L, future.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void accumulatesAdditionsAndDrainsThemOnce() throws Exception {
+        AccountTable table = new AccountTable(1000);
+        table.addAndGet(1, 10, id -> 5);
+        table.addAndGet(1, -3, NO_LOADS);
+        table.addAndGet(2, 1, id -> 0);
+        AccountBatch batch = new AccountBatch();
+        table.drainDirty(batch);
+        table.finishFlush(new AccountBatch());
+        batch.sortById();
+        assertEquals(2, batch.size());
+        assertEquals(12, batch.getValue(0));
+        assertEquals(1, batch.getValue(1));
+        AccountBatch again = new AccountBatch();
+        table.drainDirty(again);
+        assertTrue(again.isEmpty());
+    }
+
+    /**
+     * A load queries the database; meanwhile the account is cached by the warm-up, changed, flushed
+     * and evicted. The value read by the load is older than the database and must not be cached.
+     */
+    @Test
+    public void dropsLoadOverlappingChangeFlushAndEviction() throws Exception {
+        AccountTable table = new AccountTable(64);
+        int id = 1;
+        AtomicLong database = new AtomicLong(100);
+        CountDownLatch selected = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        AccountTable.AccountLoader loader = key -> {
+            long value = database.get();
+            if (loads.getAndIncrement() == 0) {
+                selected.countDown();
+                await(release);
+            }
+            return value;
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> stale = executor.submit(() -> table.getOrLoad(id, loader));
+            assertTrue(selected.await(10, TimeUnit.SECONDS));
+            changeFlushAndEvict(table, id, database);
+            release.countDown();
+            assertEquals(105L, (long) stale.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, loads.get());
+        assertEquals(105, table.getOrLoad(id, NO_LOADS));
+    }
+
+    @Test
+    public void dropsBatchLoadOverlappingChangeFlushAndEviction() throws Exception {
+        AccountTable table = new AccountTable(64);
+        int id = 1;
+        AtomicLong database = new AtomicLong(100);
+        CountDownLatch selected = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AccountTable.AccountBatchLoader batchLoader = ids -> {
+            long value = database.get();
+            selected.countDown();
+            await(release);
+            return new long[]{value};
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<long[]> stale = executor.submit(() ->
+                    table.getOrLoadAll(new int[]{id}, key -> database.get(), batchLoader));
+            assertTrue(selected.await(10, TimeUnit.SECONDS));
+            changeFlushAndEvict(table, id, database);
+            release.countDown();
+            assertEquals(105L, stale.get(10, TimeUnit.SECONDS)[0]);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(105, table.getOrLoad(id, NO_LOADS));
+    }
+
+    /**
+     * Caches the account as the warm-up does, adds 5 to it, flushes it to the database and evicts it
+     * by loading another account of the same single-entry segment.
+     */
+    private static void changeFlushAndEvict(AccountTable table, int id, AtomicLong database) throws SQLException {
+        assertTrue(table.preload(id, database.get()));
+        assertEquals(105, table.addAndGet(id, 5, NO_LOADS));
+        AccountBatch batch = new AccountBatch();
+        table.drainDirty(batch);
+        database.set(batch.getValue(0));
+        table.finishFlush(new AccountBatch());
+        table.getOrLoad(neighbour(id), key -> 0);
+        assertEquals(1, table.getEvictionCount());
+    }
+
+    /**
+     * @return another identifier of the same segment
+     */
+    private static int neighbour(int id) {
+        int segment = AccountTable.hash(id) >>> 26;
+        for (int other = id + 1; ; other++) {
+            if (AccountTable.hash(other) >>> 26 == segment)
+                return other;
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of {@link CacheSnapshot} over an in-memory H2 database: a restored cache takes balances changed
+ * after the snapshot from the database and all others from the snapshot, and damaged snapshots are ignored.
+ */
+public class CacheSnapshotTest {
+    private static final AccountTable.AccountLoader NO_LOADS = id -> {
+        throw new AssertionError("Account " + id + " must be restored");
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private Config config;
+    private DBConnection dbConnection;
+
+    @Before
+    public void createDatabase() throws Exception {
+        file = folder.getRoot().toPath().resolve("cache.snapshot");
+        Properties properties = new Properties();
+        properties.setProperty("service.port", "0");
+        properties.setProperty("client.rcount", "0");
+        properties.setProperty("client.wcount", "0");
+        properties.setProperty("client.range", "1");
+        properties.setProperty("jdbc.url", "jdbc:h2:mem:snapshot" + System.nanoTime()
+                + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        properties.setProperty("jdbc.user", "sa");
+        properties.setProperty("jdbc.pass", "");
+        properties.setProperty("cache.snapshot_file", file.toString());
+        config = new Config(properties);
+        dbConnection = DBConnection.createConnection(config);
+        AccountBatch balances = new AccountBatch();
+        for (int id = 1; id <= 200; id++)
+            balances.add(id, id * 10L);
+        dbConnection.updateData(balances);
+    }
+
+    @After
+    public void closeDatabase() throws Exception {
+        dbConnection.close();
+    }
+
+    @Test
+    public void restoresSnapshotWithChangesMadeAfterIt() throws Exception {
+        writeSnapshot();
+        AccountBatch changes = new AccountBatch();
+        changes.add(5, -5);
+        changes.add(150, -150);
+        dbConnection.updateData(changes);
+
+        AccountTable restored = new AccountTable(1000);
+        assertTrue(new CacheSnapshot(config, dbConnection, restored).restore());
+        assertEquals("only accounts of the snapshot are restored", 100, restored.size());
+        assertEquals(-5, restored.getOrLoad(5, NO_LOADS));
+        assertEquals(70, restored.getOrLoad(7, NO_LOADS));
+        assertEquals(0, restored.dirtyCount());
+    }
+
+    @Test
+    public void ignoresDamagedSnapshot() throws Exception {
+        writeSnapshot();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 30);
+        }
+
+        AccountTable restored = new AccountTable(1000);
+        assertFalse(new CacheSnapshot(config, dbConnection, restored).restore());
+        assertEquals(0, restored.size());
+    }
+
+    @Test
+    public void ignoresAbsentSnapshot() throws Exception {
+        assertFalse(new CacheSnapshot(config, dbConnection, new AccountTable(1000)).restore());
+    }
+
+    /**
+     * Snapshots a cache of accounts 1 to 100, the first half of the accounts in the database.
+     */
+    private void writeSnapshot() throws Exception {
+        AccountTable cache = new AccountTable(1000);
+        for (int id = 1; id <= 100; id++)
+            cache.preload(id, id * 10L);
+        new CacheSnapshot(config, dbConnection, cache).write();
+    }
+}
@@ -0,0 +1,73 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of {@link HotAccounts}: promotion by contention, lookups, and striped cells which count
+ * every concurrent addition exactly and refuse additions once sealed.
+ */
+public class HotAccountsTest {
+    @Test
+    public void promotesAtThresholdUpToMaxCount() {
+        HotAccounts hot = new HotAccounts(3, 2);
+        int hash = AccountTable.hash(1);
+        assertFalse(hot.contended(hash));
+        assertFalse(hot.contended(hash));
+        assertTrue(hot.contended(hash));
+        assertFalse("promotion is asked for once", hot.contended(hash));
+        hot.resetContention();
+        assertFalse(hot.contended(hash));
+
+        HotAccounts.Cell first = hot.promote(1, AccountTable.hash(1));
+        HotAccounts.Cell second = hot.promote(2, AccountTable.hash(2));
+        assertNull("too many hot accounts", hot.promote(3, AccountTable.hash(3)));
+        assertEquals(2, hot.size());
+        assertSame(first, hot.get(1, AccountTable.hash(1)));
+        assertSame(second, hot.get(2, AccountTable.hash(2)));
+        assertNull(hot.get(3, AccountTable.hash(3)));
+
+        hot.demote(1);
+        assertEquals(1, hot.size());
+        assertNull(hot.get(1, AccountTable.hash(1)));
+        assertSame(second, hot.get(2, AccountTable.hash(2)));
+    }
+
+    @Test
+    public void countsConcurrentAdditionsExactly() throws Exception {
+        HotAccounts hot = new HotAccounts(1000, 1);
+        HotAccounts.Cell cell = hot.promote(7, AccountTable.hash(7));
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    assertTrue(cell.add(3));
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+
+        assertEquals(240000, cell.sum());
+        assertEquals(80000, cell.drainAdditions());
+        assertEquals(0, cell.drainAdditions());
+        assertFalse(hot.isCold(80000));
+        assertTrue(hot.isCold(999));
+        assertEquals(240000, cell.drain(false));
+        assertEquals(0, cell.sum());
+    }
+
+    @Test
+    public void refusesAdditionsToSealedCell() {
+        HotAccounts.Cell cell = new HotAccounts(1, 1).promote(7, AccountTable.hash(7));
+        assertTrue(cell.add(5));
+        assertEquals(5, cell.drain(true));
+        assertFalse(cell.add(1));
+        assertEquals(0, cell.sum());
+    }
+}
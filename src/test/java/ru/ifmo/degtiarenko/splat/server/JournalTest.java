@@ -0,0 +1,163 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of {@link Journal}: replay of concurrently appended records into an in-memory H2 database,
+ * damaged records and release of segments. Segments hold ten records, so every test crosses segments.
+ */
+public class JournalTest {
+    private static final int SEGMENT_RECORDS = 10;
+    private static final int RECORD_SIZE = 24;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysLastBalanceOfEveryAccount() throws Exception {
+        Config config = config();
+        Journal journal = new Journal(config);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int firstId = t * 100;
+            writers[t] = new Thread(() -> {
+                try {
+                    for (long balance = 1; balance <= 50; balance++) {
+                        for (int id = firstId; id < firstId + 10; id++)
+                            journal.onUpdate(id, 1, balance);
+                        journal.awaitDurable();
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+        journal.close();
+
+        Journal reopened = new Journal(config);
+        AccountBatch recovered = reopened.recover();
+        assertEquals(40, recovered.size());
+        DBConnection dbConnection = DBConnection.createConnection(config);
+        try {
+            dbConnection.updateData(recovered);
+            int[] ids = new int[recovered.size()];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = recovered.getId(i);
+            for (long amount : dbConnection.getAmounts(ids))
+                assertEquals(50, amount);
+        } finally {
+            dbConnection.close();
+        }
+        reopened.discardRecovered();
+        reopened.close();
+
+        Journal next = new Journal(config);
+        try {
+            assertTrue("discarded records are replayed", next.recover().isEmpty());
+        } finally {
+            next.close();
+        }
+    }
+
+    @Test
+    public void skipsDamagedRecords() throws Exception {
+        Config config = config();
+        Journal journal = new Journal(config);
+        for (int id = 1; id <= 3; id++)
+            journal.onUpdate(id, id, id * 10);
+        journal.close();
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), RECORD_SIZE + 16);
+        }
+
+        Journal reopened = new Journal(config);
+        try {
+            assertEquals(balances(1, 10L, 3, 30L), toMap(reopened.recover()));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void releasesSegmentsBeforeCheckpoint() throws Exception {
+        Config config = config();
+        Journal journal = new Journal(config);
+        for (int i = 0; i < SEGMENT_RECORDS * 2 + 5; i++)
+            journal.onUpdate(i, 1, i);
+        assertEquals(3, segments().size());
+        journal.release(journal.checkpoint());
+        assertEquals("only the current segment is kept", 1, segments().size());
+        journal.onUpdate(SEGMENT_RECORDS * 2, 1, -1);
+        journal.close();
+
+        Journal reopened = new Journal(config);
+        try {
+            Map<Integer, Long> recovered = toMap(reopened.recover());
+            assertEquals(SEGMENT_RECORDS / 2, recovered.size());
+            assertEquals(-1L, (long) recovered.get(SEGMENT_RECORDS * 2));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private Config config() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("service.port", "0");
+        properties.setProperty("client.rcount", "0");
+        properties.setProperty("client.wcount", "0");
+        properties.setProperty("client.range", "1");
+        properties.setProperty("jdbc.url", "jdbc:h2:mem:journal" + System.nanoTime()
+                + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        properties.setProperty("jdbc.user", "sa");
+        properties.setProperty("jdbc.pass", "");
+        properties.setProperty("journal.mode", "group");
+        properties.setProperty("journal.dir", folder.getRoot().toString());
+        properties.setProperty("journal.segment_size", Integer.toString(SEGMENT_RECORDS * RECORD_SIZE));
+        return new Config(properties);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder.getRoot().toPath(), "journal-*.log")) {
+            files.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static Map<Integer, Long> toMap(AccountBatch batch) {
+        Map<Integer, Long> balances = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++)
+            balances.put(batch.getId(i), batch.getValue(i));
+        return balances;
+    }
+
+    private static Map<Integer, Long> balances(int id1, long balance1, int id2, long balance2) {
+        Map<Integer, Long> balances = new HashMap<>();
+        balances.put(id1, balance1);
+        balances.put(id2, balance2);
+        return balances;
+    }
+}
@@ -0,0 +1,195 @@
+package ru.ifmo.degtiarenko.splat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ifmo.degtiarenko.splat.client.BenchReport;
+import ru.ifmo.degtiarenko.splat.client.Client;
+import ru.ifmo.degtiarenko.splat.config.Config;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End-to-end suite of the whole stack: the {@link Client} benchmark workload sends requests over RMI
+ * to a {@link Service} backed by an in-memory H2 database in PostgreSQL mode.
+ * <p>
+ * Runs only with the <code>perf</code> profile: <code>mvn test -Pperf</code>. Floors are set by system
+ * properties, so slower machines can lower them: <code>perf.rate</code> in requests per second,
+ * <code>perf.duration</code> in seconds, <code>perf.min_throughput</code> as a part of the requested rate
+ * and <code>perf.max_p99</code> in milliseconds.
+ */
+public class ServicePerformanceIT {
+    private static final double RATE = Double.parseDouble(System.getProperty("perf.rate", "2000"));
+    private static final long DURATION = Long.parseLong(System.getProperty("perf.duration", "5"));
+    private static final double MIN_THROUGHPUT = Double.parseDouble(System.getProperty("perf.min_throughput", "0.9"));
+    private static final double MAX_P99 = Double.parseDouble(System.getProperty("perf.max_p99", "50"));
+    private static final String BINDING_NAME = "perf/AccountService";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private String jdbcUrl;
+    private int port;
+    private Service service;
+
+    @Before
+    public void startService() throws Exception {
+        jdbcUrl = "jdbc:h2:mem:perf" + System.nanoTime() + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+        port = freePort();
+        service = new Service(new Config(serviceProperties()));
+    }
+
+    @After
+    public void stopService() {
+        if (service != null)
+            service.shutdown();
+    }
+
+    @Test
+    public void addAmountLosesNoUpdates() throws Exception {
+        RecordingService recorder = new RecordingService(lookup());
+        BenchReport report = runClient(recorder, "1-50", 0.2);
+
+        assertEquals("failed reads", 0, report.getReadErrors());
+        assertEquals("failed writes", 0, report.getWriteErrors());
+        assertFalse("no writes were sent", recorder.sums.isEmpty());
+        for (Map.Entry<Integer, LongAdder> entry : recorder.sums.entrySet())
+            assertEquals("cached balance of " + entry.getKey(), entry.getValue().sum(),
+                    (long) recorder.getAmount(entry.getKey()));
+
+        service.shutdown();
+        service = null;
+        Map<Integer, Long> stored = readAccounts();
+        for (Map.Entry<Integer, LongAdder> entry : recorder.sums.entrySet())
+            assertEquals("stored balance of " + entry.getKey(), entry.getValue().sum(),
+                    (long) stored.getOrDefault(entry.getKey(), 0L));
+    }
+
+    @Test
+    public void meetsThroughputAndLatencyFloors() throws Exception {
+        BenchReport report = runClient(lookup(), "1-100000", 0.8);
+
+        assertEquals("failed reads", 0, report.getReadErrors());
+        assertEquals("failed writes", 0, report.getWriteErrors());
+        assertTrue(String.format("throughput %.1f requests/s is below %.0f%% of %.1f",
+                report.getThroughput(), MIN_THROUGHPUT * 100, RATE),
+                report.getThroughput() >= RATE * MIN_THROUGHPUT);
+        assertP99("getAmount", report.getReadLatency().getValueAtPercentile(99));
+        assertP99("addAmount", report.getWriteLatency().getValueAtPercentile(99));
+    }
+
+    private static void assertP99(String method, long nanos) {
+        double millis = nanos / 1_000_000.0;
+        assertTrue(String.format("%s p99 latency %.3f ms exceeds %.3f ms", method, millis, MAX_P99),
+                millis <= MAX_P99);
+    }
+
+    private BenchReport runClient(AccountService target, String range, double readRatio) throws Exception {
+        Path reportFile = folder.getRoot().toPath().resolve("report.properties");
+        Properties properties = serviceProperties();
+        properties.setProperty("client.range", range);
+        properties.setProperty("client.mode", "bench");
+        properties.setProperty("client.bench_rate", Double.toString(RATE));
+        properties.setProperty("client.bench_read_ratio", Double.toString(readRatio));
+        properties.setProperty("client.bench_threads", "16");
+        properties.setProperty("client.bench_warmup", "1");
+        properties.setProperty("client.bench_duration", Long.toString(DURATION));
+        properties.setProperty("client.bench_report", reportFile.toString());
+        Config config = new Config(properties);
+        new Client(0, 0, config.getClientRange(), target).runBenchmark(config);
+        return BenchReport.read(reportFile);
+    }
+
+    private Properties serviceProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("service.port", Integer.toString(port));
+        properties.setProperty("service.host_ip", "localhost");
+        properties.setProperty("service.binding_name", BINDING_NAME);
+        properties.setProperty("jdbc.url", jdbcUrl);
+        properties.setProperty("jdbc.user", "sa");
+        properties.setProperty("jdbc.pass", "");
+        properties.setProperty("client.rcount", "0");
+        properties.setProperty("client.wcount", "0");
+        properties.setProperty("client.range", "1");
+        properties.setProperty("cache.capacity", "1000000");
+        properties.setProperty("cache.flush_interval", "200");
+        return properties;
+    }
+
+    private AccountService lookup() throws Exception {
+        return (AccountService) LocateRegistry.getRegistry("localhost", port).lookup(BINDING_NAME);
+    }
+
+    private Map<Integer, Long> readAccounts() throws SQLException {
+        Map<Integer, Long> accounts = new HashMap<>();
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, "sa", "");
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT id, account FROM accounts")) {
+            while (resultSet.next())
+                accounts.put(resultSet.getInt(1), resultSet.getLong(2));
+        }
+        return accounts;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Sums deltas of successful <code>addAmount</code> calls per account.
+     */
+    private static final class RecordingService implements AccountService {
+        private final AccountService service;
+        private final ConcurrentMap<Integer, LongAdder> sums = new ConcurrentHashMap<>();
+
+        RecordingService(AccountService service) {
+            this.service = service;
+        }
+
+        @Override
+        public Long getAmount(Integer id) throws RemoteException, SQLException {
+            return service.getAmount(id);
+        }
+
+        @Override
+        public void addAmount(Integer id, Long value) throws RemoteException, SQLException {
+            service.addAmount(id, value);
+            sums.computeIfAbsent(id, key -> new LongAdder()).add(value);
+        }
+
+        @Override
+        public long[] getAmounts(int[] ids) throws RemoteException, SQLException {
+            return service.getAmounts(ids);
+        }
+
+        @Override
+        public void addAmounts(int[] ids, long[] values) throws RemoteException, SQLException {
+            service.addAmounts(ids, values);
+            for (int i = 0; i < ids.length; i++)
+                sums.computeIfAbsent(ids[i], key -> new LongAdder()).add(values[i]);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ru.ifmo.degtiarenko.splat.stat;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of {@link HeavyHitters}: frequent keys are found among many rare ones, ordered by count,
+ * and forgotten by decay and reset.
+ */
+public class HeavyHittersTest {
+    @Test
+    public void findsFrequentKeysAmongRareOnes() throws Exception {
+        HeavyHitters hitters = new HeavyHitters(3);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            long seed = t;
+            writers[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 50_000; i++) {
+                    hitters.record(1_000_000 + random.nextInt(100_000));
+                    if (i % 5 == 0)
+                        hitters.record(7);
+                    if (i % 10 == 0)
+                        hitters.record(8);
+                    if (i % 20 == 0)
+                        hitters.record(9);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+
+        List<HeavyHitters.Entry> top = hitters.getTop();
+        assertEquals(3, top.size());
+        assertEquals(7, top.get(0).getId());
+        assertEquals(8, top.get(1).getId());
+        assertEquals(9, top.get(2).getId());
+        assertTrue("count of 7 is underestimated", top.get(0).getCount() >= 40_000);
+        assertEquals(4 * (50_000 + 10_000 + 5_000 + 2_500), hitters.getTotal());
+    }
+
+    @Test
+    public void decaysAndResetsCounts() {
+        HeavyHitters hitters = new HeavyHitters(2);
+        for (int i = 0; i < 1000; i++)
+            hitters.record(1);
+        for (int i = 0; i < 10; i++)
+            hitters.record(2);
+
+        hitters.decay(0.5);
+        assertEquals(505, hitters.getTotal());
+        assertEquals(500, hitters.getTop().get(0).getCount());
+        for (int i = 0; i < 1000; i++)
+            hitters.record(3);
+        assertEquals(3, hitters.getTop().get(0).getId());
+
+        hitters.reset();
+        assertEquals(0, hitters.getTotal());
+        assertTrue(hitters.getTop().isEmpty());
+    }
+}
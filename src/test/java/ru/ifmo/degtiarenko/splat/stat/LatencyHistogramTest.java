@@ -0,0 +1,75 @@
+package ru.ifmo.degtiarenko.splat.stat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of {@link LatencyHistogram}: percentiles within the relative error, merging and reset.
+ */
+public class LatencyHistogramTest {
+    private static final double RELATIVE_ERROR = 1.0 / 64;
+
+    @Test
+    public void reportsPercentilesWithBoundedError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1_000_000; value++)
+            histogram.record(value * 1000);
+
+        assertEquals(1_000_000, histogram.getTotalCount());
+        assertEquals(1_000_000_000L, histogram.getMax());
+        assertEquals(500_000_500.0, histogram.getMean(), 1e-6);
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+            double expected = percentile * 10_000_000;
+            long actual = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + "th percentile " + actual + " is below " + expected, actual >= expected);
+            assertTrue(percentile + "th percentile " + actual + " is far from " + expected,
+                    actual <= expected * (1 + RELATIVE_ERROR));
+        }
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void keepsSmallValuesExactAndLargeValuesInLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0; value < 100; value++)
+            histogram.record(value);
+        histogram.record(-5);
+        histogram.record(1L << 50);
+
+        assertEquals(102, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(49, histogram.getValueAtPercentile(50));
+        assertEquals(1L << 50, histogram.getMax());
+        assertEquals("values out of range are reported at its end", (1L << 44) - 1,
+                histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getCount(LatencyHistogram.getBucketCount() - 1));
+    }
+
+    @Test
+    public void mergesAndResets() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (long value = 1; value <= 100; value++) {
+            first.record(value);
+            second.record(value + 100);
+        }
+        first.add(second);
+        assertEquals(200, first.getTotalCount());
+        assertEquals(200, first.getMax());
+        assertEquals(100.5, first.getMean(), 1e-9);
+
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int bucket = 0; bucket < LatencyHistogram.getBucketCount(); bucket++)
+            copy.addCount(bucket, first.getCount(bucket));
+        copy.addSummary(first.getSum(), first.getMax());
+        assertEquals(first.getValueAtPercentile(99), copy.getValueAtPercentile(99));
+        assertEquals(first.getMean(), copy.getMean(), 1e-9);
+
+        first.reset();
+        assertEquals(0, first.getTotalCount());
+        assertEquals(0, first.getMax());
+        assertEquals(0, first.getValueAtPercentile(50));
+    }
+}